@@ -0,0 +1,60 @@
+package sim;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// cacheBenchmark - single loads and stores against a 32 KB cache, one access per op. the
+// addresses are random 4-byte accesses over a working set that either fits in half the cache
+// (mostly hits) or is 16 times larger (almost every access misses and evicts a line)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class cacheBenchmark {
+    private static final int SIZE_KB = 32;
+    private static final int ADDRESSES = 1 << 16; // power of two, the index wraps with a mask
+
+    @Param({"1", "4", "16"})
+    int ways;
+
+    @Param({"16", "64", "256"})
+    int blockSize;
+
+    @Param({"fits", "evicts"})
+    String workingSet;
+
+    @Param({"fifo"})
+    String policy;
+
+    private cachesim.cache cache;
+    private int[] addresses = new int[ADDRESSES];
+    private byte[] buffer = {1, 2, 3, 4};
+    private int next;
+
+    @Setup(Level.Trial)
+    public void build() {
+        cache = new cachesim.cache(SIZE_KB, ways, blockSize, policy, null);
+        int span = workingSet.equals("fits") ? SIZE_KB * 512 : SIZE_KB * 1024 * 16;
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < ADDRESSES; i++) {
+            addresses[i] = random.nextInt(span) & ~3;
+        }
+        // warm the cache so the first iteration does not measure cold misses
+        for (int address : addresses) {
+            cache.loadInto(address, 4, buffer, 0);
+        }
+    }
+
+    @Benchmark
+    public boolean load() {
+        return cache.loadInto(addresses[next++ & (ADDRESSES - 1)], 4, buffer, 0);
+    }
+
+    @Benchmark
+    public boolean store() {
+        return cache.storeFrom(addresses[next++ & (ADDRESSES - 1)], 4, buffer, 0);
+    }
+}
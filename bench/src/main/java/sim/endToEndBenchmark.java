@@ -0,0 +1,56 @@
+package sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// endToEndBenchmark - a whole run, one trace per op: parsing, simulation and formatting the
+// per-access output (into a discarding stream), the same work as ./cachesim minus disk I/O.
+// metrics=on also collects --metrics, to show what the instrumentation costs. the two differ by
+// a few percent at most, so this one runs enough forks to tell that from fork-to-fork noise
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(5)
+public class endToEndBenchmark {
+    @Param({"traces/random2.txt"})
+    String trace;
+
+    @Param({"32"})
+    int sizeKB;
+
+    @Param({"4"})
+    int ways;
+
+    @Param({"256"})
+    int blockSize;
+
+    @Param({"off", "on"})
+    String metrics;
+
+    private byte[] text;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        text = Files.readAllBytes(Paths.get(trace));
+    }
+
+    @Benchmark
+    public long run() {
+        cachesim.traceInit(new ByteArrayInputStream(text));
+        cachesim.cache cache = new cachesim.cache(sizeKB, ways, blockSize);
+        if (metrics.equals("on")) {
+            cache.metrics = new cachesim.cacheMetrics(cache, 0);
+        }
+        cachesim.outputWriter log = new cachesim.outputWriter(OutputStream.nullOutputStream());
+        cachesim.runTrace(cache, log);
+        log.flush();
+        return cache.loadMisses + cache.storeMisses;
+    }
+}
@@ -0,0 +1,50 @@
+package sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// parseBenchmark - text trace parsing on its own. the trace is held in memory so disk reads do
+// not count, and parsing starts over from the first line whenever it reaches the end
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class parseBenchmark {
+    @Param({"traces/random2.txt"})
+    String trace;
+
+    private byte[] text;
+    private cachesim.accessBatch batch = new cachesim.accessBatch();
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        text = Files.readAllBytes(Paths.get(trace));
+        cachesim.traceInit(new ByteArrayInputStream(text));
+    }
+
+    // one access per op through the original traceFinished/traceNextAccess API
+    @Benchmark
+    public Object nextAccess() {
+        if (cachesim.traceFinished()) {
+            cachesim.traceInit(new ByteArrayInputStream(text));
+        }
+        return cachesim.traceNextAccess();
+    }
+
+    // one batch of up to 4096 accesses per op, the path the simulator uses
+    @Benchmark
+    public int nextBatch() {
+        int n = cachesim.traceNextBatch(batch);
+        if (n == 0) {
+            cachesim.traceInit(new ByteArrayInputStream(text));
+            n = cachesim.traceNextBatch(batch);
+        }
+        return n;
+    }
+}
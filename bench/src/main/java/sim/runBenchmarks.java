@@ -0,0 +1,19 @@
+package sim;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// runBenchmarks - the benchmarks jar's entry point. takes the usual JMH command line and always
+// adds the GC profiler, so every result comes with its allocation (gc.alloc.rate.norm, bytes/op)
+public class runBenchmarks {
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
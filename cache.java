@@ -4,7 +4,7 @@ public class cache {
     private int cacheSize, numOfBlockPerSet, blockSize;
     private int numSets;
 
-    private List<MemoryBlock> RAM = new ArrayList<>();
+    private sparseMemory RAM;
     private List<cacheSet> sets = new ArrayList<>();
     private byte[] lastLoadedData;
 
@@ -17,10 +17,8 @@ public class cache {
         // Calculate number of sets
         this.numSets = cacheSize / (blockSize * numOfBlockPerSet);
 
-        // Initialize RAM with zeros (as specified in assignment) - 16MB memory
-        for (int i = 0; i < (16 * 1024 * 1024) / blockSize; i++) {
-            RAM.add(new MemoryBlock(blockSize));
-        }
+        // Main memory starts out all zeros (as specified in assignment); blocks are only allocated once written back
+        RAM = new sparseMemory(blockSize);
 
         // Initialize cache sets
         for (int i = 0; i < numSets; i++) {
@@ -30,17 +28,17 @@ public class cache {
 
     // Get set index from address
     private int getSetIndex(int address) {
-        return (address / blockSize) % numSets;
+        return Integer.remainderUnsigned(Integer.divideUnsigned(address, blockSize), numSets);
     }
 
     // Get tag from address
     private int getTag(int address) {
-        return address / (blockSize * numSets);
+        return Integer.divideUnsigned(address, blockSize * numSets);
     }
 
     // Get offset within block
     private int getOffset(int address) {
-        return address % blockSize;
+        return Integer.remainderUnsigned(address, blockSize);
     }
 
     public String load(int address, int size) {
@@ -64,10 +62,7 @@ public class cache {
                 System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " dirty");
                 
                 // Write back to memory for dirty block
-                MemoryBlock ramBlock = RAM.get(evictedAddress / blockSize);
-                for (int i = 0; i < blockSize; i++) {
-                    ramBlock.data[i] = evictedBlock.data[i];
-                }
+                RAM.writeBlock(Integer.toUnsignedLong(evictedAddress) / blockSize, evictedBlock.data, 0);
             } else {
                 System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " clean");
             }
@@ -111,10 +106,7 @@ public class cache {
                 System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " dirty");
                 
                 // Write back to memory for dirty block
-                MemoryBlock ramBlock = RAM.get(evictedAddress / blockSize);
-                for (int i = 0; i < blockSize; i++) {
-                    ramBlock.data[i] = evictedBlock.data[i];
-                }
+                RAM.writeBlock(Integer.toUnsignedLong(evictedAddress) / blockSize, evictedBlock.data, 0);
             } else {
                 System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " clean");
             }
@@ -5,9 +5,9 @@ public class cacheSet {
     private int setIndex, numSets, blockSize;
     private List<cache.cacheBlock> blocks = new ArrayList<>(); // Maintained in FIFO order
     private int maxBlocks;
-    private List<MemoryBlock> ram;
+    private sparseMemory ram;
 
-    public cacheSet(int setIndex, int numSets, int blockSize, int maxBlocks, List<MemoryBlock> ram) {
+    public cacheSet(int setIndex, int numSets, int blockSize, int maxBlocks, sparseMemory ram) {
         this.setIndex = setIndex;
         this.numSets = numSets;
         this.blockSize = blockSize;
@@ -57,10 +57,7 @@ public class cacheSet {
         newBlock.tag = tag;
 
         // Load the entire block from RAM first
-        int ramBlockIndex = fullAddress / blockSize;
-        if (ramBlockIndex < ram.size()) {
-            System.arraycopy(ram.get(ramBlockIndex).data, 0, newBlock.data, 0, blockSize);
-        }
+        ram.readBlock(Integer.toUnsignedLong(fullAddress) / blockSize, newBlock.data, 0);
 
         // Then write the new data
         for (int i = 0; i < size; i++) {
@@ -93,10 +90,7 @@ public class cacheSet {
         newBlock.tag = tag;
 
         // Load from RAM
-        int ramBlockIndex = fullAddress / blockSize;
-        if (ramBlockIndex < ram.size()) {
-            System.arraycopy(ram.get(ramBlockIndex).data, 0, newBlock.data, 0, blockSize);
-        }
+        ram.readBlock(Integer.toUnsignedLong(fullAddress) / blockSize, newBlock.data, 0);
            
         // Step 3: Evict if full using FIFO - remove the oldest block (first in the list)
         if (blocks.size() >= maxBlocks) {
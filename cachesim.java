@@ -1,9 +1,41 @@
 import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.GZIPInputStream;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 public class cachesim {
 
-    static Scanner traceFileScanner;
+    static traceSource traceFileReader;
+    static int traceBlockSize; // readers reject accesses that cross a block this large, 0 to allow any
 
     // MemoryBlock class
     private static class MemoryBlock {
@@ -24,375 +56,5344 @@ public class cachesim {
         }
     }
 
-    // cache block class
-    private static class cacheBlock {
-        boolean filledBlock;
-        boolean modifiedBlock;
-        int tag;
-        byte[] data;
+    // sparseMemory class - main memory that only allocates a block the first time it is written
+    private static class sparseMemory {
+        private static final int PAGE_BITS = 12; // blocks per directory page (log2)
+        private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
 
-        public cacheBlock(int blockSize) {
-            this.filledBlock = false;
-            this.modifiedBlock = false;
-            this.tag = -1;
-            this.data = new byte[blockSize];
+        private int blockSize;
+        private MemoryBlock[][] pages = new MemoryBlock[0][];
+
+        public sparseMemory(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        // copy a whole block into dst; a block that was never written reads as zeros
+        public void readBlock(long blockIndex, byte[] dst, int dstOffset) {
+            MemoryBlock block = getBlock(blockIndex);
+            if (block != null) {
+                System.arraycopy(block.data, 0, dst, dstOffset, blockSize);
+            } else {
+                Arrays.fill(dst, dstOffset, dstOffset + blockSize, (byte) 0);
+            }
+        }
+
+        // copy a whole block from src into memory, allocating it on first write
+        public void writeBlock(long blockIndex, byte[] src, int srcOffset) {
+            System.arraycopy(src, srcOffset, allocateBlock(blockIndex).data, 0, blockSize);
+        }
+
+        // copy part of a block, e.g. a write-through store; the rest of the block is unchanged
+        public void writeBytes(long blockIndex, int offset, byte[] src, int srcOffset, int length) {
+            System.arraycopy(src, srcOffset, allocateBlock(blockIndex).data, offset, length);
+        }
+
+        private MemoryBlock allocateBlock(long blockIndex) {
+            int pageIndex = (int) (blockIndex >>> PAGE_BITS);
+            if (pageIndex >= pages.length) {
+                // grow the directory geometrically so a walk upwards stays cheap
+                int newLength = pages.length == 0 ? 16 : pages.length;
+                while (newLength <= pageIndex) {
+                    newLength *= 2;
+                }
+                pages = Arrays.copyOf(pages, newLength);
+            }
+            MemoryBlock[] page = pages[pageIndex];
+            if (page == null) {
+                page = new MemoryBlock[1 << PAGE_BITS];
+                pages[pageIndex] = page;
+            }
+            int slot = (int) (blockIndex & PAGE_MASK);
+            MemoryBlock block = page[slot];
+            if (block == null) {
+                block = new MemoryBlock(blockSize);
+                page[slot] = block;
+            }
+            return block;
+        }
+
+        private MemoryBlock getBlock(long blockIndex) {
+            long pageIndex = blockIndex >>> PAGE_BITS;
+            if (pageIndex >= pages.length) {
+                return null;
+            }
+            MemoryBlock[] page = pages[(int) pageIndex];
+            if (page == null) {
+                return null;
+            }
+            return page[(int) (blockIndex & PAGE_MASK)];
+        }
+
+        // blocks holding anything but zeros, the only ones a checkpoint needs
+        private int nonZeroBlocks() {
+            int n = 0;
+            for (MemoryBlock[] page : pages) {
+                if (page != null) {
+                    for (MemoryBlock block : page) {
+                        if (block != null && !isZero(block.data)) {
+                            n++;
+                        }
+                    }
+                }
+            }
+            return n;
+        }
+
+        private static boolean isZero(byte[] data) {
+            for (byte b : data) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // checkpoints: a block count, then each non-zero block as its index and its bytes
+        long stateBytes() {
+            return 4 + (long) nonZeroBlocks() * (8 + blockSize);
+        }
+
+        void saveState(stateFile b) throws IOException {
+            b.putInt(nonZeroBlocks());
+            for (int p = 0; p < pages.length; p++) {
+                if (pages[p] == null) {
+                    continue;
+                }
+                for (int slot = 0; slot < pages[p].length; slot++) {
+                    MemoryBlock block = pages[p][slot];
+                    if (block != null && !isZero(block.data)) {
+                        b.putLong(((long) p << PAGE_BITS) | slot);
+                        b.put(block.data);
+                    }
+                }
+            }
+        }
+
+        void loadState(stateFile b) throws IOException {
+            pages = new MemoryBlock[0][];
+            for (int n = b.getInt(); n > 0; n--) {
+                b.get(allocateBlock(b.getLong()).data);
+            }
+        }
+    }
+
+    // outputWriter class - buffered ASCII output. text and hex are encoded into a reusable
+    // byte buffer with a lookup table and handed to the stream in large chunks
+    static class outputWriter {
+        private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+        };
+
+        private OutputStream out;
+        private byte[] buf = new byte[1 << 16];
+        private int count;
+
+        public outputWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        // write an ASCII string
+        public void write(String text) {
+            int length = text.length();
+            if (count + length > buf.length) {
+                drain(length);
+            }
+            for (int i = 0; i < length; i++) {
+                buf[count++] = (byte) text.charAt(i);
+            }
+        }
+
+        // write a 32-bit value as unsigned lowercase hex without leading zeros, like Integer.toHexString
+        public void writeHex(int value) {
+            if (count + 8 > buf.length) {
+                drain(8);
+            }
+            int digits = value == 0 ? 1 : (35 - Integer.numberOfLeadingZeros(value)) >> 2;
+            for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+                buf[count++] = HEX_DIGITS[(value >>> shift) & 0xF];
+            }
+        }
+
+        // write bytes as two lowercase hex digits each
+        public void writeHexBytes(byte[] data, int offset, int length) {
+            if (count + 2 * length > buf.length) {
+                drain(2 * length);
+            }
+            for (int i = offset, end = offset + length; i < end; i++) {
+                int b = data[i];
+                buf[count++] = HEX_DIGITS[(b >> 4) & 0xF];
+                buf[count++] = HEX_DIGITS[b & 0xF];
+            }
+        }
+
+        public void newline() {
+            if (count == buf.length) {
+                drain(1);
+            }
+            buf[count++] = '\n';
+        }
+
+        public void flush() {
+            drain(0);
+            try {
+                out.flush();
+            } catch (IOException e) {
+                // nothing sensible left to report to
+            }
+        }
+
+        // empty the buffer, growing it if `needed` bytes would still not fit
+        private void drain(int needed) {
+            try {
+                out.write(buf, 0, count);
+            } catch (IOException e) {
+                System.err.println("Failed to write output: " + e.getMessage());
+                System.exit(1);
+            }
+            count = 0;
+            if (needed > buf.length) {
+                buf = new byte[Integer.highestOneBit(needed) << 1];
+            }
+        }
+    }
+
+    // replacementPolicy interface - decides which way of a full set is evicted. cacheSet tells it
+    // about every hit, fill and invalidation, and asks for a victim when a miss finds no empty way
+    private interface replacementPolicy {
+        void onHit(int set, int way);
+
+        void onFill(int set, int way);
+
+        void onInvalidate(int set, int way);
+
+        int victim(int set);
+
+        // checkpoints: the size of the policy's metadata, then saving and restoring it
+        int stateBytes();
+
+        void saveState(stateFile b) throws IOException;
+
+        void loadState(stateFile b) throws IOException;
+    }
+
+    /**
+     * Builds a replacement policy from its command line name, optionally followed by
+     * ":seed" for the randomised ones (e.g. "random:42").
+     * @param spec: fifo, lru, plru, lfu, nmru, random or srrip
+     * @param numSets: number of sets in the cache
+     * @param ways: lines per set
+     * @return the policy, or null if the name is not recognised
+     */
+    static replacementPolicy createPolicy(String spec, int numSets, int ways) {
+        int colon = spec.indexOf(':');
+        String name = colon < 0 ? spec : spec.substring(0, colon);
+        long seed = colon < 0 ? 1 : Long.parseLong(spec.substring(colon + 1));
+        switch (name) {
+            case "fifo":
+                return new recencyPolicy(numSets, ways, false);
+            case "lru":
+                return new recencyPolicy(numSets, ways, true);
+            case "plru":
+                return new treePlruPolicy(numSets, ways);
+            case "lfu":
+                return new lfuPolicy(numSets, ways);
+            case "nmru":
+                return new nmruPolicy(numSets, ways, seed);
+            case "random":
+                return new randomPolicy(ways, seed);
+            case "srrip":
+                return new srripPolicy(numSets, ways);
+            default:
+                return null;
+        }
+    }
+
+    // recencyPolicy class - FIFO or true LRU. each set keeps its lines in a doubly linked list
+    // (oldest first) threaded through flat prev/next arrays, so every operation is O(1).
+    // LRU moves a line to the back on a hit, FIFO leaves it where it was filled
+    private static class recencyPolicy implements replacementPolicy {
+        private int ways;
+        private boolean promoteOnHit;
+        private int[] prev, next; // per line, way numbers within the set, -1 at the ends
+        private int[] head, tail; // per set, oldest and newest way, -1 while empty
+
+        public recencyPolicy(int numSets, int ways, boolean promoteOnHit) {
+            this.ways = ways;
+            this.promoteOnHit = promoteOnHit;
+            prev = new int[numSets * ways];
+            next = new int[numSets * ways];
+            head = new int[numSets];
+            tail = new int[numSets];
+            Arrays.fill(prev, -1);
+            Arrays.fill(next, -1);
+            Arrays.fill(head, -1);
+            Arrays.fill(tail, -1);
+        }
+
+        public void onHit(int set, int way) {
+            if (promoteOnHit && tail[set] != way) {
+                unlink(set, way);
+                append(set, way);
+            }
+        }
+
+        public void onFill(int set, int way) {
+            int line = set * ways + way;
+            if (head[set] == way || prev[line] >= 0) {
+                unlink(set, way); // refilling a line that was already in the list
+            }
+            append(set, way);
+        }
+
+        public void onInvalidate(int set, int way) {
+            int line = set * ways + way;
+            if (head[set] == way || prev[line] >= 0) {
+                unlink(set, way); // empty ways are refilled before the list is asked for a victim
+            }
+        }
+
+        public int victim(int set) {
+            return head[set];
+        }
+
+        public int stateBytes() {
+            return 4 * (prev.length + next.length + head.length + tail.length);
+        }
+
+        public void saveState(stateFile b) throws IOException {
+            b.putInts(prev);
+            b.putInts(next);
+            b.putInts(head);
+            b.putInts(tail);
+        }
+
+        public void loadState(stateFile b) throws IOException {
+            b.getInts(prev);
+            b.getInts(next);
+            b.getInts(head);
+            b.getInts(tail);
+        }
+
+        private void unlink(int set, int way) {
+            int base = set * ways;
+            int p = prev[base + way], n = next[base + way];
+            if (p >= 0) {
+                next[base + p] = n;
+            } else {
+                head[set] = n;
+            }
+            if (n >= 0) {
+                prev[base + n] = p;
+            } else {
+                tail[set] = p;
+            }
+            prev[base + way] = -1;
+            next[base + way] = -1;
+        }
+
+        private void append(int set, int way) {
+            int base = set * ways;
+            int last = tail[set];
+            prev[base + way] = last;
+            next[base + way] = -1;
+            if (last >= 0) {
+                next[base + last] = way;
+            } else {
+                head[set] = way;
+            }
+            tail[set] = way;
+        }
+    }
+
+    // treePlruPolicy class - tree pseudo-LRU. the ways - 1 tree nodes of a set are bits of one
+    // long (node n has children 2n and 2n + 1, root is 1); a set bit means "victim is on the right"
+    private static class treePlruPolicy implements replacementPolicy {
+        private int levels;
+        private long[] bits;
+
+        public treePlruPolicy(int numSets, int ways) {
+            if (Integer.bitCount(ways) != 1 || ways > 64) {
+                fail("plru needs a power-of-two associativity of at most 64");
+            }
+            this.levels = Integer.numberOfTrailingZeros(ways);
+            this.bits = new long[numSets];
+        }
+
+        // point every node on the way's path away from it
+        private void touch(int set, int way) {
+            long b = bits[set];
+            int node = 1;
+            for (int level = levels - 1; level >= 0; level--) {
+                int right = (way >>> level) & 1;
+                if (right == 1) {
+                    b &= ~(1L << node);
+                } else {
+                    b |= 1L << node;
+                }
+                node = 2 * node + right;
+            }
+            bits[set] = b;
+        }
+
+        public void onHit(int set, int way) {
+            touch(set, way);
+        }
+
+        public void onFill(int set, int way) {
+            touch(set, way);
+        }
+
+        public void onInvalidate(int set, int way) {
+        }
+
+        public int victim(int set) {
+            long b = bits[set];
+            int node = 1;
+            for (int level = 0; level < levels; level++) {
+                node = 2 * node + (int) ((b >>> node) & 1);
+            }
+            return node - (1 << levels);
+        }
+
+        public int stateBytes() {
+            return 8 * bits.length;
+        }
+
+        public void saveState(stateFile b) throws IOException {
+            b.putLongs(bits);
+        }
+
+        public void loadState(stateFile b) throws IOException {
+            b.getLongs(bits);
+        }
+    }
+
+    // lfuPolicy class - least frequently used, ties go to the lowest way. the victim search is
+    // a scan over the set's counters, which stays in one or two cache lines for realistic ways
+    private static class lfuPolicy implements replacementPolicy {
+        private int ways;
+        private int[] count;
+
+        public lfuPolicy(int numSets, int ways) {
+            this.ways = ways;
+            this.count = new int[numSets * ways];
+        }
+
+        public void onHit(int set, int way) {
+            int line = set * ways + way;
+            if (count[line] != Integer.MAX_VALUE) {
+                count[line]++;
+            }
+        }
+
+        public void onFill(int set, int way) {
+            count[set * ways + way] = 1;
+        }
+
+        public void onInvalidate(int set, int way) {
+            count[set * ways + way] = 0;
+        }
+
+        public int victim(int set) {
+            int base = set * ways;
+            int best = 0;
+            for (int way = 1; way < ways; way++) {
+                if (count[base + way] < count[base + best]) {
+                    best = way;
+                }
+            }
+            return best;
+        }
+
+        public int stateBytes() {
+            return 4 * count.length;
+        }
+
+        public void saveState(stateFile b) throws IOException {
+            b.putInts(count);
+        }
+
+        public void loadState(stateFile b) throws IOException {
+            b.getInts(count);
+        }
+    }
+
+    // splitMix class - the SplitMix64 generator SplittableRandom is built on, written out so its
+    // whole state is one long a checkpoint can save. draws match new SplittableRandom(seed)
+    private static class splitMix {
+        private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+        long state;
+
+        public splitMix(long seed) {
+            this.state = seed;
+        }
+
+        int nextInt() {
+            long z = state += GOLDEN_GAMMA;
+            z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+            return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+        }
+
+        // uniform in [0, bound): powers of two are masked, otherwise draws that would favour
+        // the low remainders are rejected
+        int nextInt(int bound) {
+            int r = nextInt();
+            int m = bound - 1;
+            if ((bound & m) == 0) {
+                return r & m;
+            }
+            for (int u = r >>> 1; u + m - (r = u - u / bound * bound) < 0; u = nextInt() >>> 1) {
+                // u was in the incomplete last interval, draw again
+            }
+            return r;
+        }
+    }
+
+    // nmruPolicy class - not most recently used: a seeded random pick among every way but the MRU one
+    private static class nmruPolicy implements replacementPolicy {
+        private int ways;
+        private int[] mru;
+        private splitMix random;
+
+        public nmruPolicy(int numSets, int ways, long seed) {
+            this.ways = ways;
+            this.mru = new int[numSets];
+            this.random = new splitMix(seed);
+        }
+
+        public void onHit(int set, int way) {
+            mru[set] = way;
+        }
+
+        public void onFill(int set, int way) {
+            mru[set] = way;
+        }
+
+        public void onInvalidate(int set, int way) {
+        }
+
+        public int victim(int set) {
+            if (ways == 1) {
+                return 0;
+            }
+            int way = random.nextInt(ways - 1);
+            return way >= mru[set] ? way + 1 : way;
+        }
+
+        public int stateBytes() {
+            return 4 * mru.length + 8;
+        }
+
+        public void saveState(stateFile b) throws IOException {
+            b.putInts(mru);
+            b.putLong(random.state);
+        }
+
+        public void loadState(stateFile b) throws IOException {
+            b.getInts(mru);
+            random.state = b.getLong();
+        }
+    }
+
+    // randomPolicy class - seeded random victim, so runs are repeatable
+    private static class randomPolicy implements replacementPolicy {
+        private int ways;
+        private splitMix random;
+
+        public randomPolicy(int ways, long seed) {
+            this.ways = ways;
+            this.random = new splitMix(seed);
+        }
+
+        public void onHit(int set, int way) {
+        }
+
+        public void onFill(int set, int way) {
+        }
+
+        public void onInvalidate(int set, int way) {
+        }
+
+        public int victim(int set) {
+            return random.nextInt(ways);
+        }
+
+        public int stateBytes() {
+            return 8;
+        }
+
+        public void saveState(stateFile b) throws IOException {
+            b.putLong(random.state);
+        }
+
+        public void loadState(stateFile b) throws IOException {
+            random.state = b.getLong();
+        }
+    }
+
+    // srripPolicy class - static re-reference interval prediction with 2-bit RRPVs. a set's
+    // RRPVs are packed two bits per way into one long, so finding a distant (3) line and
+    // ageing the whole set are a handful of bit operations instead of loops
+    private static class srripPolicy implements replacementPolicy {
+        private static final long LOW_BITS = 0x5555555555555555L;
+        private static final int INSERT_RRPV = 2; // new lines are predicted "long" re-reference
+
+        private long laneMask; // low bit of each lane in use
+        private long[] rrpv;
+
+        public srripPolicy(int numSets, int ways) {
+            if (ways > 32) {
+                fail("srrip supports at most 32 ways");
+            }
+            this.laneMask = ways == 32 ? LOW_BITS : LOW_BITS & ((1L << (2 * ways)) - 1);
+            this.rrpv = new long[numSets];
+        }
+
+        private void set(int set, int way, int value) {
+            int shift = 2 * way;
+            rrpv[set] = (rrpv[set] & ~(3L << shift)) | ((long) value << shift);
+        }
+
+        public void onHit(int set, int way) {
+            set(set, way, 0);
+        }
+
+        public void onFill(int set, int way) {
+            set(set, way, INSERT_RRPV);
+        }
+
+        public void onInvalidate(int set, int way) {
+            set(set, way, 3);
+        }
+
+        public int victim(int set) {
+            long r = rrpv[set];
+            long high = (r >>> 1) & laneMask;
+            long low = r & laneMask;
+            long distant = high & low;
+            if (distant == 0) {
+                // age every lane by the same amount so the oldest reaches 3; none can overflow
+                long age = high != 0 ? 1 : low != 0 ? 2 : 3;
+                r += age * laneMask;
+                rrpv[set] = r;
+                distant = (r >>> 1) & r & laneMask;
+            }
+            return Long.numberOfTrailingZeros(distant) >>> 1;
+        }
+
+        public int stateBytes() {
+            return 8 * rrpv.length;
+        }
+
+        public void saveState(stateFile b) throws IOException {
+            b.putLongs(rrpv);
         }
+
+        public void loadState(stateFile b) throws IOException {
+            b.getLongs(rrpv);
+        }
+    }
+
+    // accessResult class - what a single probe of a set found. one instance is reused per cache
+    private static class accessResult {
+        boolean hit;
+        int line;            // line that holds the block, or that a miss was given
+        boolean evicted;     // a miss displaced a valid line
+        boolean victimDirty; // the displaced line was modified and needs a write-back
+        boolean victimPrefetched; // the displaced line was prefetched and never used
+        int victimTag;
+        int victimAddress;   // filled in by the cache once it knows the set
     }
 
-    // cacheSet class
+    // cacheSet class - a view of one set inside the cache's flat line arrays.
+    // line i of set s lives at index s * ways + i in every array, and its data at line * blockSize
     private static class cacheSet {
-        private int setIndex, numSets, blockSize;
-        private List<cacheBlock> blocks = new ArrayList<>(); // Maintained in FIFO order
+        private int setIndex;
         private int maxBlocks;
-        private List<MemoryBlock> ram;
+        private int base; // index of this set's first line
+        private cache owner;
 
-        public cacheSet(int setIndex, int numSets, int blockSize, int maxBlocks, List<MemoryBlock> ram) {
+        public cacheSet(int setIndex, cache owner) {
             this.setIndex = setIndex;
-            this.numSets = numSets;
-            this.blockSize = blockSize;
-            this.maxBlocks = maxBlocks;
-            this.ram = ram;
+            this.owner = owner;
+            this.maxBlocks = owner.numOfBlockPerSet;
+            this.base = setIndex * maxBlocks;
+        }
+
+        // probe the set once for this tag. on a miss the victim (if any) is described in result
+        // and its line is handed over to the new tag; the caller still owns writing back the old
+        // contents and filling the line, both of which it can do through result.line
+        public void access(int tag, accessResult result) {
+            int[] tags = owner.tags;
+            boolean[] filled = owner.filledBlock;
+            int empty = -1;
+            for (int line = base, end = base + maxBlocks; line < end; line++) {
+                if (!filled[line]) {
+                    if (empty < 0) {
+                        empty = line;
+                    }
+                } else if (tags[line] == tag) {
+                    owner.policy.onHit(setIndex, line - base);
+                    result.hit = true;
+                    result.line = line;
+                    result.evicted = false;
+                    return;
+                }
+            }
+
+            // miss - take the first empty way, otherwise ask the replacement policy
+            int line;
+            if (empty >= 0) {
+                line = empty;
+                result.evicted = false;
+            } else {
+                line = base + owner.policy.victim(setIndex);
+                result.evicted = true;
+                result.victimDirty = owner.modifiedBlock[line];
+                result.victimPrefetched = owner.prefetchedBlock[line];
+                result.victimTag = tags[line];
+            }
+            owner.policy.onFill(setIndex, line - base);
+            result.hit = false;
+            result.line = line;
+
+            tags[line] = tag;
+            filled[line] = true;
+            owner.modifiedBlock[line] = false;
+            owner.sharedBlock[line] = false;
+            owner.prefetchedBlock[line] = false;
+        }
+
+        // drop a line without writing it back, e.g. when a lower level evicts it or takes it over
+        public void invalidate(int line) {
+            owner.filledBlock[line] = false;
+            owner.modifiedBlock[line] = false;
+            owner.sharedBlock[line] = false;
+            owner.prefetchedBlock[line] = false;
+            owner.policy.onInvalidate(setIndex, line - base);
+        }
+
+        // find the line holding this tag, or -1 if it is not cached
+        public int findBlockByTag(int tag) {
+            int[] tags = owner.tags;
+            boolean[] filled = owner.filledBlock;
+            for (int line = base, end = base + maxBlocks; line < end; line++) {
+                if (filled[line] && tags[line] == tag) {
+                    return line;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // cache class - tags, state bits and replacement metadata live in flat arrays,
+    // and all block data in one contiguous byte array
+    static class cache {
+        // how a level's contents relate to the levels above it, see hierarchy
+        static final int NINE = 0, INCLUSIVE = 1, EXCLUSIVE = 2;
+
+        private int cacheSize, numOfBlockPerSet, blockSize;
+        private int numSets;
+
+        private sparseMemory RAM; // backing store of the last level, null without block data
+        private cache next;       // next level down, null when this level sits on RAM
+        private cache[] above = new cache[0]; // levels nearer the core, L1 first
+        private int inclusion = NINE;
+        private cacheSet[] sets;
+        private accessResult probe = new accessResult();
+        private byte[] lastLoadedData;
+        private outputWriter log; // where replacement lines go, null to keep quiet
+
+        // running totals, reported by the summary modes. below L1 the loads are block fetches
+        // for the level above and the stores are the blocks it writes back (or, exclusive, evicts)
+        long loadHits, loadMisses, storeHits, storeMisses, dirtyEvictions, cleanEvictions;
+        long backInvalidations, memoryReads, memoryWrites;
+
+        // per line state, indexed by set * numOfBlockPerSet + way
+        private int[] tags;
+        private boolean[] filledBlock;
+        private boolean[] modifiedBlock;
+        private boolean[] sharedBlock; // other caches may hold the block too, see coherenceBus
+        private boolean[] prefetchedBlock; // filled by the prefetcher and not used by a demand access yet
+        private byte[] data; // null when only tags and state are tracked, see --stats-only
+
+        // replacement metadata, kept by the policy in its own flat arrays
+        private replacementPolicy policy;
+
+        prefetchUnit prefetch; // null unless --prefetch is given
+        victimCache victims;   // null unless --victim-cache is given
+        private boolean filledFromVictims; // the last miss was served by the victim cache
+        missClassifier classifier; // null unless --classify-misses is given
+        timingModel timing;        // null unless --timing or --dram is given
+        cacheMetrics metrics;      // null unless --metrics is given
+
+        // write policy: write-back with write-allocate unless changed, see setWritePolicy
+        private boolean writeThrough;
+        private boolean writeAllocate = true;
+        writeBuffer buffer; // coalesces writes on their way to RAM, null when there is none
+        long memoryWriteBytes; // written to RAM directly, the buffer counts its own
+
+        public cache(int sizeKB, int blocksPerSet, int blockSize) {
+            this(sizeKB, blocksPerSet, blockSize, "fifo", null);
+        }
+
+        public cache(int sizeKB, int blocksPerSet, int blockSize, String policyName, outputWriter log) {
+            this(sizeKB, blocksPerSet, blockSize, policyName, log, true);
+        }
+
+        /**
+         * @param trackData: false to keep only tags and state bits. There is then no block data
+         * and no RAM: loads read nothing, stores and write-backs are only counted. Levels below,
+         * victim caches and write buffers move block data and cannot be used without it.
+         */
+        public cache(int sizeKB, int blocksPerSet, int blockSize, String policyName, outputWriter log, boolean trackData) {
+            this.log = log;
+
+            // converts the input values into useful variables
+            this.cacheSize = sizeKB * 1024;
+            this.numOfBlockPerSet = blocksPerSet;
+            this.blockSize = blockSize;
+
+            // calculate number of sets
+            this.numSets = cacheSize / (blockSize * numOfBlockPerSet);
+
+            // main memory starts out all zeros, blocks are only allocated once written back
+            if (trackData) {
+                RAM = new sparseMemory(blockSize);
+            }
+
+            // allocate the line arrays once, misses reuse lines in place
+            int numLines = numSets * numOfBlockPerSet;
+            tags = new int[numLines];
+            filledBlock = new boolean[numLines];
+            modifiedBlock = new boolean[numLines];
+            sharedBlock = new boolean[numLines];
+            prefetchedBlock = new boolean[numLines];
+            if (trackData) {
+                data = new byte[numLines * blockSize];
+            }
+            try {
+                policy = createPolicy(policyName, numSets, numOfBlockPerSet);
+            } catch (NumberFormatException e) {
+                fail("Bad seed in replacement policy: " + policyName);
+            }
+            if (policy == null) {
+                fail("Unknown replacement policy: " + policyName);
+            }
+
+            // initialize cache sets
+            sets = new cacheSet[numSets];
+            for (int i = 0; i < numSets; i++) {
+                sets[i] = new cacheSet(i, this);
+            }
+        }
+
+        // get set index from address
+        private int getSetIndex(int address) {
+            return setIndexOf(address, blockSize, numSets);
+        }
+
+        // get tag from address
+        private int getTag(int address) {
+            return tagOf(address, blockSize, numSets);
+        }
+
+        // address decomposition shared with the analysis modes, which have no cache instance
+        static int setIndexOf(int address, int blockSize, int numSets) {
+            return Integer.divideUnsigned(address, blockSize) & (numSets - 1);
+        }
+
+        static int tagOf(int address, int blockSize, int numSets) {
+            return Integer.divideUnsigned(address, blockSize * numSets);
+        }
+
+        // get offset within block
+        private int getOffset(int address) {
+            return address & (blockSize - 1);
+        }
+
+        public String load(int address, int size) {
+            lastLoadedData = new byte[size];
+            boolean hit = loadInto(address, size, lastLoadedData, 0);
+            logReplacement();
+            return hit ? "hit" : "miss";
+        }
+
+        public String store(int address, int size, byte[] data) {
+            boolean hit = storeFrom(address, size, data, 0);
+            logReplacement();
+            return hit ? "hit" : "miss";
+        }
+
+        /**
+         * Runs a whole batch of accesses. Hit/miss, any replacement and the loaded bytes of each
+         * access are written into results, so nothing is allocated once the batches are warm.
+         * @param batch: the accesses, in trace order
+         * @param results: receives one result per access
+         */
+        public void process(accessBatch batch, resultBatch results) {
+            results.clear();
+            for (int i = 0; i < batch.count; i++) {
+                int size = batch.size[i];
+                if (batch.isStore[i]) {
+                    results.hit[i] = storeFrom(batch.address[i], size, batch.data, batch.dataOffset[i]);
+                } else {
+                    int offset = results.reserveLoad(size);
+                    results.loadOffset[i] = offset;
+                    results.hit[i] = loadInto(batch.address[i], size, results.loadData, offset);
+                }
+                results.evicted[i] = probe.evicted;
+                results.victimDirty[i] = probe.victimDirty;
+                results.victimAddress[i] = probe.victimAddress;
+                if (timing != null) {
+                    timing.access(batch.address[i], results.hit[i], probe.line, filledFromVictims);
+                }
+                if (classifier != null) {
+                    classifier.record(Integer.divideUnsigned(batch.address[i], blockSize), results.hit[i], filledFromVictims);
+                }
+                if (metrics != null) {
+                    metrics.access(batch.address[i], getSetIndex(batch.address[i]), results.hit[i], probe.line);
+                }
+                if (prefetch != null) {
+                    prefetchAfter(batch.address[i], !results.hit[i]);
+                }
+            }
+        }
+
+        // load `size` bytes into dst[dstOffset...]. any replacement is left described in probe
+        boolean loadInto(int address, int size, byte[] dst, int dstOffset) {
+            int setIndex = getSetIndex(address);
+            int offset = getOffset(address);
+
+            // probe the set for this address once
+            sets[setIndex].access(getTag(address), probe);
+            if (!probe.hit) {
+                miss(address, setIndex, true);
+            }
+
+            // get the data for this load
+            if (data != null) {
+                System.arraycopy(data, probe.line * blockSize + offset, dst, dstOffset, size);
+            }
+
+            if (probe.hit) {
+                if (prefetchedBlock[probe.line]) {
+                    prefetchedBlock[probe.line] = false;
+                    prefetch.used(probe.line);
+                }
+                loadHits++;
+                return true;
+            }
+            loadMisses++;
+            return false;
+        }
+
+        /**
+         * Changes how stores reach memory. Only meaningful for a cache directly in front of RAM.
+         * @param writeThrough: every store also goes to memory and lines never become dirty
+         * @param writeAllocate: a store miss fills the block; otherwise it goes around the cache
+         * @param bufferEntries: blocks in a coalescing write buffer before RAM, 0 for none
+         */
+        void setWritePolicy(boolean writeThrough, boolean writeAllocate, int bufferEntries) {
+            this.writeThrough = writeThrough;
+            this.writeAllocate = writeAllocate;
+            this.buffer = bufferEntries > 0 ? new writeBuffer(bufferEntries, blockSize, RAM) : null;
+        }
+
+        // store `size` bytes taken from src[srcOffset...]. any replacement is left described in probe
+        boolean storeFrom(int address, int size, byte[] src, int srcOffset) {
+            int setIndex = getSetIndex(address);
+            int offset = getOffset(address);
+            int tag = getTag(address);
+
+            if (!writeAllocate && sets[setIndex].findBlockByTag(tag) < 0) {
+                // no-write-allocate: a missing store goes around the cache
+                probe.hit = false;
+                probe.evicted = false;
+                probe.line = -1; // no line holds this access
+                if (victims != null) {
+                    victims.write(address, src, srcOffset, size); // or taking it back would undo the store
+                }
+                writeMemory(address, src, srcOffset, size);
+                storeMisses++;
+                return false;
+            }
+
+            // probe the set for this address once
+            sets[setIndex].access(tag, probe);
+            if (!probe.hit) {
+                miss(address, setIndex, true); // write-allocate
+            }
+
+            // update data
+            if (data != null) {
+                System.arraycopy(src, srcOffset, data, probe.line * blockSize + offset, size);
+            }
+            if (writeThrough) {
+                writeMemory(address, src, srcOffset, size);
+            } else {
+                modifiedBlock[probe.line] = true;
+            }
+
+            if (probe.hit) {
+                if (prefetchedBlock[probe.line]) {
+                    prefetchedBlock[probe.line] = false;
+                    prefetch.used(probe.line);
+                }
+                storeHits++;
+                return true;
+            }
+            storeMisses++;
+            return false;
+        }
+
+        // finish a miss the probe handed a line for: evict whatever was there, then fill the line
+        // from the next level (or RAM) unless the caller is about to overwrite all of it
+        private void miss(int address, int setIndex, boolean fill) {
+            int lineStart = probe.line * blockSize;
+
+            // a block in the victim cache comes back from there, swapping places with our victim
+            filledFromVictims = victims != null && victims.take(Integer.divideUnsigned(address, blockSize)) && fill;
+
+            if (probe.evicted) {
+                probe.victimAddress = (probe.victimTag * numSets + setIndex) * blockSize;
+                if (probe.victimPrefetched) {
+                    prefetch.unused++;
+                }
+                if (inclusion == INCLUSIVE && backInvalidate(probe.victimAddress, lineStart)) {
+                    probe.victimDirty = true;
+                }
+
+                // write back to memory for dirty block
+                if (probe.victimDirty) {
+                    dirtyEvictions++;
+                } else {
+                    cleanEvictions++;
+                }
+                if (metrics != null) {
+                    metrics.evicted(setIndex, probe.line - setIndex * numOfBlockPerSet, probe.victimAddress, probe.victimDirty);
+                }
+                if (victims != null) {
+                    victims.put(probe.victimAddress, data, lineStart, probe.victimDirty);
+                } else {
+                    writeBelow(probe.victimAddress, data, lineStart, probe.victimDirty);
+                }
+            }
+
+            // load the entire block from the level below
+            if (filledFromVictims) {
+                System.arraycopy(victims.scratch, 0, data, lineStart, blockSize);
+                modifiedBlock[probe.line] = victims.scratchDirty;
+            } else if (fill) {
+                modifiedBlock[probe.line] = fetchFromBelow(address, data, lineStart);
+            }
+        }
+
+        // after a demand access: let the prefetcher see it, then bring in whatever it asks for
+        private void prefetchAfter(int address, boolean miss) {
+            int block = Integer.divideUnsigned(address, blockSize);
+            prefetch.demand(block, miss);
+            int n = prefetch.policy.observe(block, miss, prefetch.requests);
+            for (int i = 0; i < n; i++) {
+                prefetchBlock(prefetch.requests[i] * blockSize);
+            }
+        }
+
+        // fill a block ahead of demand, tagged so its first use can be counted. no-op if cached
+        private void prefetchBlock(int address) {
+            int setIndex = getSetIndex(address);
+            int tag = getTag(address);
+            if (sets[setIndex].findBlockByTag(tag) >= 0) {
+                return;
+            }
+            sets[setIndex].access(tag, probe);
+            miss(address, setIndex, true);
+            prefetchedBlock[probe.line] = true;
+            if (timing != null) {
+                timing.prefetch(address, probe.line);
+            }
+            prefetch.filled(probe.line, Integer.divideUnsigned(address, blockSize),
+                probe.evicted ? Integer.divideUnsigned(probe.victimAddress, blockSize) : -1, probe.evicted);
+        }
+
+        // hand the block at src[srcOffset...] to the next level or RAM. exclusive levels below
+        // take every victim, the others only dirty ones
+        private void writeBelow(int address, byte[] src, int srcOffset, boolean dirty) {
+            if (next != null) {
+                if (dirty || inclusion == EXCLUSIVE) {
+                    next.writeBlock(address, src, srcOffset, dirty);
+                }
+            } else if (dirty) {
+                memoryWrites++;
+                if (timing != null) {
+                    timing.queueWriteBack(address);
+                }
+                if (buffer != null) {
+                    buffer.write(address, src, srcOffset, blockSize);
+                } else {
+                    if (RAM != null) {
+                        RAM.writeBlock(Integer.toUnsignedLong(address) / blockSize, src, srcOffset);
+                    }
+                    memoryWriteBytes += blockSize;
+                }
+            }
+        }
+
+        // a store's bytes on their way to memory (write-through or no-write-allocate)
+        private void writeMemory(int address, byte[] src, int srcOffset, int size) {
+            if (buffer != null) {
+                buffer.write(address, src, srcOffset, size);
+            } else {
+                if (RAM != null) {
+                    RAM.writeBytes(Integer.toUnsignedLong(address) / blockSize, getOffset(address), src, srcOffset, size);
+                }
+                memoryWriteBytes += size;
+            }
+        }
+
+        // read a whole block from the next level or RAM. true if it comes with a dirty copy
+        private boolean fetchFromBelow(int address, byte[] dst, int dstOffset) {
+            if (next != null) {
+                return next.fetchBlock(address, dst, dstOffset);
+            }
+            long block = Integer.toUnsignedLong(address) / blockSize;
+            if (buffer != null) {
+                buffer.flush(block); // a read must see writes still waiting in the buffer
+            }
+            if (RAM != null) {
+                RAM.readBlock(block, dst, dstOffset);
+            }
+            memoryReads++;
+            return false;
+        }
+
+        /**
+         * Hands a whole block to the level above, which missed on it. Inclusive and NINE levels
+         * allocate it on a miss and keep their copy; an exclusive level gives its copy up.
+         * @param address: any address in the block
+         * @param dst: receives the block
+         * @param dstOffset: where in dst
+         * @return true if the block is dirty and the level above now holds the only copy
+         */
+        boolean fetchBlock(int address, byte[] dst, int dstOffset) {
+            int setIndex = getSetIndex(address);
+            if (inclusion == EXCLUSIVE) {
+                int line = sets[setIndex].findBlockByTag(getTag(address));
+                if (line < 0) {
+                    loadMisses++;
+                    return fetchFromBelow(address, dst, dstOffset);
+                }
+                loadHits++;
+                boolean dirty = modifiedBlock[line];
+                System.arraycopy(data, line * blockSize, dst, dstOffset, blockSize);
+                sets[setIndex].invalidate(line);
+                return dirty;
+            }
+
+            sets[setIndex].access(getTag(address), probe);
+            if (probe.hit) {
+                loadHits++;
+            } else {
+                loadMisses++;
+                miss(address, setIndex, true);
+            }
+            System.arraycopy(data, probe.line * blockSize, dst, dstOffset, blockSize);
+            return false;
+        }
+
+        /**
+         * Takes a whole block evicted by the level above: a write-back, or for an exclusive
+         * level any victim. The block is allocated here without reading it from further down.
+         * @param address: any address in the block
+         * @param src: the block's bytes
+         * @param srcOffset: where in src
+         * @param dirty: whether the block differs from memory
+         */
+        void writeBlock(int address, byte[] src, int srcOffset, boolean dirty) {
+            int setIndex = getSetIndex(address);
+            sets[setIndex].access(getTag(address), probe);
+            if (probe.hit) {
+                storeHits++;
+                dirty |= modifiedBlock[probe.line];
+            } else {
+                storeMisses++;
+                miss(address, setIndex, false);
+            }
+            System.arraycopy(src, srcOffset, data, probe.line * blockSize, blockSize);
+            modifiedBlock[probe.line] = dirty;
+        }
+
+        // inclusive: a block leaving this level must leave every level above it as well. a dirty
+        // copy up there is newer than ours, so it is merged into the victim's line before the
+        // write-back; the nearest level goes first so that L1's copy, the newest, lands last.
+        // returns true if anything dirty was merged
+        private boolean backInvalidate(int address, int lineStart) {
+            boolean dirty = false;
+            for (int i = above.length - 1; i >= 0; i--) {
+                cache upper = above[i];
+                if (upper.victims != null && upper.victims.take(Integer.divideUnsigned(address, blockSize))
+                    && upper.victims.scratchDirty) {
+                    System.arraycopy(upper.victims.scratch, 0, data, lineStart, blockSize);
+                    dirty = true;
+                }
+                int setIndex = upper.getSetIndex(address);
+                int line = upper.sets[setIndex].findBlockByTag(upper.getTag(address));
+                if (line >= 0) {
+                    if (upper.modifiedBlock[line]) {
+                        System.arraycopy(upper.data, line * blockSize, data, lineStart, blockSize);
+                        dirty = true;
+                    }
+                    upper.sets[setIndex].invalidate(line);
+                    upper.backInvalidations++;
+                }
+            }
+            return dirty;
+        }
+
+        // checkpoints: the line arrays (state bits packed into one byte per line), the policy's
+        // metadata, then with data tracked the block data and the non-zero blocks of RAM
+        long stateBytes() {
+            long bytes = 5L * tags.length + policy.stateBytes();
+            if (data != null) {
+                bytes += data.length + RAM.stateBytes();
+            }
+            return bytes;
+        }
+
+        void saveState(stateFile b) throws IOException {
+            b.putInts(tags);
+            for (int line = 0; line < tags.length; line++) {
+                b.put((byte) ((filledBlock[line] ? 1 : 0) | (modifiedBlock[line] ? 2 : 0)
+                    | (sharedBlock[line] ? 4 : 0) | (prefetchedBlock[line] ? 8 : 0)));
+            }
+            policy.saveState(b);
+            if (data != null) {
+                b.put(data);
+                RAM.saveState(b);
+            }
+        }
+
+        void loadState(stateFile b) throws IOException {
+            b.getInts(tags);
+            for (int line = 0; line < tags.length; line++) {
+                int bits = b.get();
+                filledBlock[line] = (bits & 1) != 0;
+                modifiedBlock[line] = (bits & 2) != 0;
+                sharedBlock[line] = (bits & 4) != 0;
+                prefetchedBlock[line] = (bits & 8) != 0;
+            }
+            policy.loadState(b);
+            if (data != null) {
+                b.get(data);
+                RAM.loadState(b);
+            }
+        }
+
+        // print the replacement message for the last access, if it replaced a line
+        private void logReplacement() {
+            if (log != null && probe.evicted) {
+                writeReplacement(log, probe.victimAddress, probe.victimDirty);
+            }
+        }
+
+        public byte[] getLoadedData() {
+            return lastLoadedData;
+        }
+    }
+
+    // timingModel class - cycle accounting on top of the functional cache. accesses issue in
+    // trace order, one per cycle, and do not wait for each other except through the cache:
+    //   hit          hitLatency, or later if the line's fill is still in flight
+    //   miss         needs a free MSHR (issue stalls until one frees), then hitLatency for the
+    //                tag check, the write-back of a dirty victim and the fill from memory
+    // memory is either a fixed missPenalty (write-backs add writebackCost before the fill) or
+    // the dram model, where write-backs are posted and only cost bank and bus time
+    private static class timingModel {
+        private int hitLatency, missPenalty, writebackCost, blockSize;
+        private long[] mshrReady;  // per MSHR, cycle its miss completes
+        private long[] lineReady;  // per line, cycle its latest fill completes
+        private dramModel dram;    // null for the fixed miss penalty
+        private long now;          // issue cycle of the current access
+        private int[] writeBacks = new int[4]; // blocks the current access sent to memory
+        private int writeBackCount;
+        private long[] histogram = new long[256]; // accesses by latency in cycles
+
+        long accesses, latencySum, stallCycles, end, memoryReads, memoryWrites;
+
+        public timingModel(cache c, int hitLatency, int missPenalty, int writebackCost, int mshrs, dramModel dram) {
+            this.hitLatency = hitLatency;
+            this.missPenalty = missPenalty;
+            this.writebackCost = writebackCost;
+            this.blockSize = c.blockSize;
+            this.dram = dram;
+            mshrReady = new long[mshrs];
+            lineReady = new long[c.numSets * c.numOfBlockPerSet];
+        }
+
+        // the cache wrote a dirty block to memory while handling the current access
+        void queueWriteBack(int address) {
+            if (writeBackCount == writeBacks.length) {
+                writeBacks = Arrays.copyOf(writeBacks, 2 * writeBackCount);
+            }
+            writeBacks[writeBackCount++] = address;
+        }
+
+        // one demand access, right after the cache processed it
+        void access(int address, boolean hit, int line, boolean fromVictims) {
+            now++;
+            long done;
+            if (hit) {
+                done = Long.max(now + hitLatency, lineReady[line]);
+            } else {
+                int m = 0;
+                for (int i = 1; i < mshrReady.length; i++) {
+                    if (mshrReady[i] < mshrReady[m]) {
+                        m = i;
+                    }
+                }
+                if (mshrReady[m] > now) {
+                    stallCycles += mshrReady[m] - now;
+                    now = mshrReady[m];
+                }
+                long start = writeBacks(now + hitLatency);
+                if (fromVictims) {
+                    done = start + 1; // one more cycle to swap the block back in
+                } else {
+                    done = read(address, start);
+                }
+                mshrReady[m] = done;
+                lineReady[line] = done;
+            }
+            record(done - now);
+            end = Long.max(end, done);
+        }
+
+        // n accesses ran without the timing model (smartsSampler's functional warming); they
+        // still took their issue cycles
+        void skip(long n) {
+            now += n;
+        }
+
+        // a prefetch fill issued with the current access; it uses memory but no MSHR
+        void prefetch(int address, int line) {
+            lineReady[line] = read(address, writeBacks(now));
+            end = Long.max(end, lineReady[line]);
+        }
+
+        // issue the queued write-backs at cycle `at`; returns when a fill may start after them
+        private long writeBacks(long at) {
+            for (int i = 0; i < writeBackCount; i++) {
+                memoryWrites++;
+                if (dram != null) {
+                    dram.access(writeBacks[i], at, true);
+                } else {
+                    at += writebackCost;
+                }
+            }
+            writeBackCount = 0;
+            return at;
+        }
+
+        // returns when the block has arrived
+        private long read(int address, long at) {
+            memoryReads++;
+            return dram != null ? dram.access(address, at, false) : at + missPenalty;
+        }
+
+        private void record(long latency) {
+            accesses++;
+            latencySum += latency;
+            if (latency >= histogram.length) {
+                histogram = Arrays.copyOf(histogram, Integer.highestOneBit((int) latency) << 1);
+            }
+            histogram[(int) latency]++;
+        }
+
+        // smallest latency that at least pct percent of the accesses did not exceed
+        long percentile(int pct) {
+            long target = (accesses * pct + 99) / 100;
+            long seen = 0;
+            for (int latency = 0; latency < histogram.length; latency++) {
+                seen += histogram[latency];
+                if (seen >= target && seen > 0) {
+                    return latency;
+                }
+            }
+            return 0;
+        }
+
+        void printSummary() {
+            out.write(String.format("timing: %d accesses in %d cycles, AMAT %.2f cycles, latency p50 %d / p90 %d / p99 %d / max %d, %d cycles stalled on MSHRs",
+                accesses, end, accesses == 0 ? 0 : (double) latencySum / accesses,
+                percentile(50), percentile(90), percentile(99), percentile(100), stallCycles));
+            out.newline();
+            long bytes = (memoryReads + memoryWrites) * blockSize;
+            out.write(String.format("memory bandwidth: %d block reads, %d block writes, %d bytes, %.3f bytes/cycle",
+                memoryReads, memoryWrites, bytes, end == 0 ? 0 : (double) bytes / end));
+            out.newline();
+            if (dram != null) {
+                out.write(String.format("dram: %d row hits, %d row misses, %d row conflicts",
+                    dram.rowHits, dram.rowMisses, dram.rowConflicts));
+                out.newline();
+            }
+        }
+    }
+
+    // dramModel class - banks with an open-page row buffer behind one shared data bus. rows are
+    // interleaved across banks; a request waits for its bank, pays tCAS on a row hit, tRCD + tCAS
+    // on a closed bank and tRP + tRCD + tCAS on a row conflict, then waits for the bus and holds
+    // it (and the bank) for the burst that moves the block
+    private static class dramModel {
+        private int banks, rowBytes, tCAS, tRCD, tRP, burstCycles;
+        private long[] bankFree;
+        private long[] openRow; // -1 while the bank is closed
+        private long busFree;
+
+        long rowHits, rowMisses, rowConflicts;
+
+        public dramModel(int banks, int rowBytes, int tCAS, int tRCD, int tRP, int busBytes, int blockSize) {
+            if (Integer.bitCount(banks) != 1) {
+                fail("The number of DRAM banks must be a power of two");
+            }
+            this.banks = banks;
+            this.rowBytes = rowBytes;
+            this.tCAS = tCAS;
+            this.tRCD = tRCD;
+            this.tRP = tRP;
+            this.burstCycles = Integer.max(1, (blockSize + busBytes - 1) / busBytes);
+            bankFree = new long[banks];
+            openRow = new long[banks];
+            Arrays.fill(openRow, -1);
+        }
+
+        // a block read or write arriving at cycle `at`; returns the cycle its transfer ends
+        long access(int address, long at, boolean write) {
+            long row = Integer.toUnsignedLong(address) / rowBytes;
+            int bank = (int) (row & (banks - 1));
+            long start = Long.max(at, bankFree[bank]);
+            long ready;
+            if (openRow[bank] == row) {
+                rowHits++;
+                ready = start + tCAS;
+            } else if (openRow[bank] < 0) {
+                rowMisses++;
+                ready = start + tRCD + tCAS;
+            } else {
+                rowConflicts++;
+                ready = start + tRP + tRCD + tCAS;
+            }
+            openRow[bank] = row;
+            busFree = Long.max(ready, busFree) + burstCycles;
+            bankFree[bank] = busFree;
+            return busFree;
+        }
+    }
+
+    // blockLru class - a fully associative LRU set of block numbers with O(1) operations: a hash
+    // map from block to slot and a doubly linked recency list through the slots. a block that
+    // leaves stays in the map pointing at -1, so the map also remembers every block ever seen
+    private static class blockLru {
+        private int capacity;
+        private intIntMap slotOf = new intIntMap();
+        private int[] blockAt, prev, next;
+        private int lru = -1, mru = -1;
+        private int[] free; // unused slots
+        private int freeCount;
+
+        boolean evicted;  // whether the last insert pushed out the LRU block
+        int evictedBlock;
+
+        public blockLru(int capacity) {
+            this.capacity = capacity;
+            blockAt = new int[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+            free = new int[capacity];
+            for (int i = 0; i < capacity; i++) {
+                free[i] = capacity - 1 - i;
+            }
+            freeCount = capacity;
+        }
+
+        // the slot holding block, or -1
+        int slot(int block) {
+            int slot = slotOf.get(block);
+            return slot == intIntMap.MISSING ? -1 : slot;
+        }
+
+        boolean seen(int block) {
+            return slotOf.get(block) != intIntMap.MISSING;
+        }
+
+        // make a present block the most recently used
+        void touch(int slot) {
+            if (slot != mru) {
+                unlink(slot);
+                append(slot);
+            }
+        }
+
+        // add a block that is not present as the most recently used, pushing out the LRU block
+        // if full (see evicted). returns its slot
+        int insert(int block) {
+            int slot;
+            evicted = freeCount == 0;
+            if (evicted) {
+                slot = lru;
+                evictedBlock = blockAt[slot];
+                slotOf.put(evictedBlock, -1);
+                unlink(slot);
+            } else {
+                slot = free[--freeCount];
+            }
+            blockAt[slot] = block;
+            slotOf.put(block, slot);
+            append(slot);
+            return slot;
+        }
+
+        void remove(int slot) {
+            slotOf.put(blockAt[slot], -1);
+            unlink(slot);
+            free[freeCount++] = slot;
+        }
+
+        private void unlink(int slot) {
+            int p = prev[slot], n = next[slot];
+            if (p >= 0) {
+                next[p] = n;
+            } else {
+                lru = n;
+            }
+            if (n >= 0) {
+                prev[n] = p;
+            } else {
+                mru = p;
+            }
+        }
+
+        private void append(int slot) {
+            prev[slot] = mru;
+            next[slot] = -1;
+            if (mru >= 0) {
+                next[mru] = slot;
+            } else {
+                lru = slot;
+            }
+            mru = slot;
+        }
+    }
+
+    // victimCache class - a small fully associative LRU buffer holding the blocks a cache evicts.
+    // a miss that finds its block here takes it back instead of going to the next level, and
+    // the block pushed out of a full victim cache is written back like a normal victim
+    private static class victimCache {
+        private cache owner;
+        private blockLru lines;
+        private byte[] data;
+        private boolean[] dirty;
+        private int blockSize;
+        byte[] scratch;        // the block the last successful take() removed
+        boolean scratchDirty;
+
+        long lookups, hits, spills, dirtySpills;
+        int capacity;
+
+        public victimCache(int capacity, cache owner) {
+            this.capacity = capacity;
+            this.owner = owner;
+            this.blockSize = owner.blockSize;
+            lines = new blockLru(capacity);
+            data = new byte[capacity * blockSize];
+            dirty = new boolean[capacity];
+            scratch = new byte[blockSize];
+        }
+
+        // remove a block into scratch; false if it is not here
+        boolean take(int block) {
+            lookups++;
+            int slot = lines.slot(block);
+            if (slot < 0) {
+                return false;
+            }
+            hits++;
+            System.arraycopy(data, slot * blockSize, scratch, 0, blockSize);
+            scratchDirty = dirty[slot];
+            lines.remove(slot);
+            return true;
+        }
+
+        // copy a store that went around the owner into this block's copy, if one is held, so
+        // neither a later take() nor a write-back of the copy brings back the old bytes
+        void write(int address, byte[] src, int srcOffset, int size) {
+            int slot = lines.slot(Integer.divideUnsigned(address, blockSize));
+            if (slot >= 0) {
+                System.arraycopy(src, srcOffset, data, slot * blockSize + owner.getOffset(address), size);
+            }
+        }
+
+        // keep an evicted block, writing back whatever it pushes out
+        void put(int address, byte[] src, int srcOffset, boolean isDirty) {
+            int block = Integer.divideUnsigned(address, blockSize);
+            int slot = lines.slot(block);
+            if (slot >= 0) {
+                lines.touch(slot);
+            } else {
+                slot = lines.insert(block);
+                if (lines.evicted) {
+                    spills++;
+                    if (dirty[slot]) {
+                        dirtySpills++;
+                    }
+                    owner.writeBelow(lines.evictedBlock * blockSize, data, slot * blockSize, dirty[slot]);
+                }
+            }
+            System.arraycopy(src, srcOffset, data, slot * blockSize, blockSize);
+            dirty[slot] = isDirty;
+        }
+    }
+
+    // missClassifier class - the 3C model. next to the real cache it keeps a fully associative
+    // LRU shadow cache with the same number of lines; the shadow's map doubles as the set of
+    // blocks seen so far. a miss on a block never seen is compulsory, a miss the shadow also has
+    // is capacity, and a miss the shadow would have hit is conflict
+    private static class missClassifier {
+        private blockLru shadow;
+        long compulsory, capacity, conflict;
+        long capacityFromVictims, conflictFromVictims; // misses the victim cache served
+
+        public missClassifier(int lines) {
+            shadow = new blockLru(lines);
+        }
+
+        void record(int block, boolean hit, boolean fromVictims) {
+            boolean seen = shadow.seen(block);
+            int slot = shadow.slot(block);
+            if (slot >= 0) {
+                shadow.touch(slot);
+            } else {
+                shadow.insert(block);
+            }
+            if (hit) {
+                return;
+            }
+            if (!seen) {
+                compulsory++;
+            } else if (slot < 0) {
+                capacity++;
+                if (fromVictims) {
+                    capacityFromVictims++;
+                }
+            } else {
+                conflict++;
+                if (fromVictims) {
+                    conflictFromVictims++;
+                }
+            }
+        }
+    }
+
+    // cacheMetrics class - per-set and per-way counters for one cache, filled in as it runs and
+    // written out as JSON or CSV at the end (--metrics=FILE). every counter is a slot in a flat
+    // array owned by the thread simulating the cache, so recording is a plain increment with
+    // nothing shared or contended. besides the counters it keeps:
+    //   heatmap   evictions per group of sets per epoch of accesses, at most HEATMAP_SIZE of
+    //             each; when the epochs run out, neighbouring rows merge and epochs double
+    //   reuse     accesses between two touches of the same block, in power-of-two buckets
+    //   jfr       every Nth eviction as a cachesim.Eviction JFR event (--metrics-jfr=N)
+    static class cacheMetrics {
+        static final int HEATMAP_SIZE = 64;
+        static final int REUSE_SAMPLE_BITS = 4; // reuse distances are measured on 1 in 16 blocks
+
+        private int numSets, ways, blockSize, sizeKB;
+        final long[] setHits, setMisses, setDirtyEvictions, setCleanEvictions, setWriteBackBytes;
+        final long[] wayHits, wayEvictions;
+
+        private long[][] heatmap = new long[HEATMAP_SIZE][];
+        private int setsPerColumn;
+        private long epochLength = 1024; // accesses per heatmap row
+        private long epochAccesses;      // accesses so far in the current row
+        private int epoch;               // current row
+
+        private intIntMap sampledBlocks = new intIntMap(); // sampled block -> its slot in lastTouch
+        private long[] lastTouch = new long[64];           // access number of the block's last touch
+        private long accesses, sampledAccesses;
+        private long coldAccesses;
+        final long[] reuse = new long[64]; // bucket b: reuse distances 2^b to 2^(b+1)-1, sampled blocks only
+
+        private int jfrInterval, sinceSample; // 0: no JFR events
+
+        public cacheMetrics(cache c, int jfrInterval) {
+            this.numSets = c.numSets;
+            this.ways = c.numOfBlockPerSet;
+            this.blockSize = c.blockSize;
+            this.sizeKB = c.cacheSize / 1024;
+            this.jfrInterval = jfrInterval;
+            setHits = new long[numSets];
+            setMisses = new long[numSets];
+            setDirtyEvictions = new long[numSets];
+            setCleanEvictions = new long[numSets];
+            setWriteBackBytes = new long[numSets];
+            wayHits = new long[ways];
+            wayEvictions = new long[ways];
+            int columns = Integer.min(numSets, HEATMAP_SIZE);
+            setsPerColumn = numSets / columns;
+            for (int i = 0; i < HEATMAP_SIZE; i++) {
+                heatmap[i] = new long[columns];
+            }
+        }
+
+        // one demand access, right after the cache processed it. line is only valid on a hit
+        void access(int address, int set, boolean hit, int line) {
+            if (hit) {
+                setHits[set]++;
+                wayHits[line - set * ways]++;
+            } else {
+                setMisses[set]++;
+            }
+
+            // only blocks whose hash has its top bits clear are followed, so the map lookup is
+            // skipped on most accesses; every touch of a followed block still counts
+            int block = Integer.divideUnsigned(address, blockSize);
+            if ((block * 0x9E3779B9) >>> (32 - REUSE_SAMPLE_BITS) == 0) {
+                touchSampled(block);
+            }
+            accesses++;
+
+            if (++epochAccesses == epochLength) {
+                epochAccesses = 0;
+                if (++epoch == HEATMAP_SIZE) {
+                    mergeEpochs();
+                }
+            }
+        }
+
+        private void touchSampled(int block) {
+            sampledAccesses++;
+            int slot = sampledBlocks.get(block);
+            if (slot == intIntMap.MISSING) {
+                slot = sampledBlocks.size();
+                sampledBlocks.put(block, slot);
+                if (slot == lastTouch.length) {
+                    lastTouch = Arrays.copyOf(lastTouch, 2 * slot);
+                }
+                coldAccesses++;
+            } else {
+                reuse[63 - Long.numberOfLeadingZeros(accesses - lastTouch[slot])]++;
+            }
+            lastTouch[slot] = accesses;
+        }
+
+        // a line was evicted from `set`, demand or prefetch
+        void evicted(int set, int way, int victimAddress, boolean dirty) {
+            if (dirty) {
+                setDirtyEvictions[set]++;
+                setWriteBackBytes[set] += blockSize;
+            } else {
+                setCleanEvictions[set]++;
+            }
+            wayEvictions[way]++;
+            heatmap[epoch][set / setsPerColumn]++;
+
+            if (jfrInterval > 0 && ++sinceSample == jfrInterval) {
+                sinceSample = 0;
+                evictionEvent event = new evictionEvent();
+                event.set = set;
+                event.way = way;
+                event.address = victimAddress;
+                event.dirty = dirty;
+                event.commit();
+            }
+        }
+
+        // halve the heatmap's time resolution: row i becomes rows 2i and 2i+1
+        private void mergeEpochs() {
+            for (int i = 0; i < HEATMAP_SIZE / 2; i++) {
+                long[] row = heatmap[2 * i];
+                for (int j = 0; j < row.length; j++) {
+                    row[j] += heatmap[2 * i + 1][j];
+                }
+                heatmap[i] = row;
+            }
+            for (int i = HEATMAP_SIZE / 2; i < HEATMAP_SIZE; i++) {
+                heatmap[i] = new long[heatmap[0].length];
+            }
+            epoch = HEATMAP_SIZE / 2;
+            epochLength *= 2;
+        }
+
+        private static long sum(long[] counts) {
+            long total = 0;
+            for (long n : counts) {
+                total += n;
+            }
+            return total;
+        }
+
+        /**
+         * Writes every metric to a file, as CSV if its name ends in .csv and JSON otherwise.
+         * @param filename: where to write
+         */
+        void write(String filename) throws IOException {
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), StandardCharsets.US_ASCII))) {
+                if (filename.endsWith(".csv")) {
+                    writeCsv(w);
+                } else {
+                    writeJson(w);
+                }
+            }
+        }
+
+        // one object: the geometry, totals, then each metric as arrays indexed by set, way,
+        // heatmap row or reuse bucket
+        private void writeJson(Writer w) throws IOException {
+            w.write(String.format("{\n  \"cache\": {\"sizeKB\": %d, \"ways\": %d, \"blockSize\": %d, \"sets\": %d},\n",
+                sizeKB, ways, blockSize, numSets));
+            w.write(String.format("  \"totals\": {\"accesses\": %d, \"hits\": %d, \"misses\": %d, \"dirtyEvictions\": %d, \"cleanEvictions\": %d, \"writeBackBytes\": %d},\n",
+                accesses, sum(setHits), sum(setMisses), sum(setDirtyEvictions), sum(setCleanEvictions), sum(setWriteBackBytes)));
+            w.write("  \"sets\": {\"hits\": " + jsonArray(setHits) + ", \"misses\": " + jsonArray(setMisses)
+                + ", \"dirtyEvictions\": " + jsonArray(setDirtyEvictions) + ", \"cleanEvictions\": " + jsonArray(setCleanEvictions)
+                + ", \"writeBackBytes\": " + jsonArray(setWriteBackBytes) + "},\n");
+            w.write("  \"ways\": {\"hits\": " + jsonArray(wayHits) + ", \"evictions\": " + jsonArray(wayEvictions) + "},\n");
+            w.write(String.format("  \"heatmap\": {\"epochAccesses\": %d, \"setsPerColumn\": %d, \"evictions\": [", epochLength, setsPerColumn));
+            for (int i = 0; i <= epoch && i < HEATMAP_SIZE; i++) {
+                w.write((i == 0 ? "\n    " : ",\n    ") + jsonArray(heatmap[i]));
+            }
+            w.write("]},\n");
+            w.write(String.format("  \"reuse\": {\"sampledBlocks\": %d, \"sampledAccesses\": %d, \"cold\": %d, \"minDistance\": [",
+                sampledBlocks.size(), sampledAccesses, scaled(coldAccesses)));
+            int buckets = reuseBuckets();
+            for (int b = 0; b < buckets; b++) {
+                w.write((b == 0 ? "" : ", ") + (1L << b));
+            }
+            w.write("], \"count\": " + jsonArray(scaledReuse(buckets)) + "}\n}\n");
+        }
+
+        private static String jsonArray(long[] values) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(values[i]);
+            }
+            return sb.append(']').toString();
+        }
+
+        // long format, one value per row: metric,row,column,value. row is the set, way, heatmap
+        // epoch or smallest reuse distance of the bucket; column is only used by the heatmap
+        private void writeCsv(Writer w) throws IOException {
+            w.write("metric,row,column,value\n");
+            w.write("accesses,,," + accesses + "\n");
+            csvRows(w, "set_hits", setHits);
+            csvRows(w, "set_misses", setMisses);
+            csvRows(w, "set_dirty_evictions", setDirtyEvictions);
+            csvRows(w, "set_clean_evictions", setCleanEvictions);
+            csvRows(w, "set_writeback_bytes", setWriteBackBytes);
+            csvRows(w, "way_hits", wayHits);
+            csvRows(w, "way_evictions", wayEvictions);
+            for (int i = 0; i <= epoch && i < HEATMAP_SIZE; i++) {
+                for (int j = 0; j < heatmap[i].length; j++) {
+                    w.write("heatmap_evictions," + i * epochLength + "," + j * setsPerColumn + "," + heatmap[i][j] + "\n");
+                }
+            }
+            w.write("reuse_sampled_blocks,,," + sampledBlocks.size() + "\n");
+            w.write("reuse_sampled_accesses,,," + sampledAccesses + "\n");
+            w.write("reuse_cold,,," + scaled(coldAccesses) + "\n");
+            long[] counts = scaledReuse(reuseBuckets());
+            for (int b = 0; b < counts.length; b++) {
+                w.write("reuse," + (1L << b) + ",," + counts[b] + "\n");
+            }
+        }
+
+        private static void csvRows(Writer w, String metric, long[] values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                w.write(metric + "," + i + ",," + values[i] + "\n");
+            }
+        }
+
+        // the sampled histogram scaled up to an estimate for every access: the sample's shape,
+        // with the bucket counts summing (give or take rounding) to the exact access count
+        private long[] scaledReuse(int buckets) {
+            long[] counts = new long[buckets];
+            for (int b = 0; b < buckets; b++) {
+                counts[b] = scaled(reuse[b]);
+            }
+            return counts;
+        }
+
+        private long scaled(long sampled) {
+            return sampledAccesses == 0 ? 0 : (long) ((double) sampled * accesses / sampledAccesses + 0.5);
+        }
+
+        // buckets up to the last non-empty one
+        private int reuseBuckets() {
+            int n = reuse.length;
+            while (n > 0 && reuse[n - 1] == 0) {
+                n--;
+            }
+            return n;
+        }
+    }
+
+    // evictionEvent class - a sampled eviction in the flight recorder. costs nothing unless a
+    // recording enables it, e.g. java -XX:StartFlightRecording=filename=run.jfr cachesim ...
+    @Name("cachesim.Eviction")
+    @Label("Cache Eviction")
+    @Category("Cache Simulator")
+    static class evictionEvent extends Event {
+        @Label("Set")
+        int set;
+        @Label("Way")
+        int way;
+        @Label("Victim Address")
+        int address;
+        @Label("Dirty")
+        boolean dirty;
+    }
+
+    // setSampler class - approximate simulation of a seeded random 1 in K of the cache's sets.
+    // accesses to the other sets are dropped before the cache sees them. every sampled set is a
+    // cluster of accesses, so the miss ratio is a ratio estimate whose variance is taken across
+    // the sampled sets, with the finite population correction for the sets left out
+    private static class setSampler {
+        private cache c;
+        private boolean[] sampled; // per set
+        private int sampledSets;
+        private long[] setAccesses, setMisses;
+        long accesses; // every access in the trace, simulated or not
+
+        public setSampler(cache c, int k, long seed) {
+            if (k < 1 || k > c.numSets) {
+                fail("--sample-sets needs a K between 1 and the number of sets (" + c.numSets + "), got " + k);
+            }
+            this.c = c;
+            sampled = new boolean[c.numSets];
+            setAccesses = new long[c.numSets];
+            setMisses = new long[c.numSets];
+
+            // the first numSets / k of a seeded shuffle
+            int[] order = new int[c.numSets];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Random random = new Random(seed);
+            sampledSets = c.numSets / k;
+            for (int i = 0; i < sampledSets; i++) {
+                int j = i + random.nextInt(order.length - i);
+                int t = order[i];
+                order[i] = order[j];
+                order[j] = t;
+                sampled[order[i]] = true;
+            }
+        }
+
+        void run() {
+            accessBatch batch = new accessBatch();
+            accessBatch kept = new accessBatch();
+            resultBatch results = new resultBatch();
+            while (traceNextBatch(batch) > 0) {
+                accesses += batch.count;
+                kept.clear();
+                for (int i = 0; i < batch.count; i++) {
+                    if (sampled[c.getSetIndex(batch.address[i])]) {
+                        kept.copyFrom(batch, i, 1);
+                    }
+                }
+                c.process(kept, results);
+                for (int i = 0; i < kept.count; i++) {
+                    int set = c.getSetIndex(kept.address[i]);
+                    setAccesses[set]++;
+                    if (!results.hit[i]) {
+                        setMisses[set]++;
+                    }
+                }
+            }
+        }
+
+        void printSummary() {
+            long a = 0, m = 0;
+            for (int set = 0; set < sampled.length; set++) {
+                a += setAccesses[set];
+                m += setMisses[set];
+            }
+            out.write(String.format("set sampling: %d of %d sets simulated, %d of %d accesses",
+                sampledSets, sampled.length, a, accesses));
+            out.newline();
+            if (a == 0) {
+                return;
+            }
+            double ratio = (double) m / a;
+            double spread = 0;
+            int used = 0; // sampled sets the trace touched; one alone says nothing about the spread
+            for (int set = 0; set < sampled.length; set++) {
+                if (sampled[set]) {
+                    double d = setMisses[set] - ratio * setAccesses[set];
+                    spread += d * d;
+                    if (setAccesses[set] > 0) {
+                        used++;
+                    }
+                }
+            }
+            int n = sampledSets;
+            double mean = (double) a / n;
+            double variance = used < 2 ? 0 : (1 - (double) n / sampled.length) * spread / (n - 1) / (n * mean * mean);
+            printEstimate("miss ratio", ratio, used < 2 ? -1 : CONFIDENCE_Z * squareRoot(variance));
+            out.write(String.format("estimated misses in the whole trace: %d", (long) (ratio * accesses + 0.5)));
+            out.newline();
+        }
+    }
+
+    // smartsSampler class - periodic sampling after SMARTS. the trace is cut into periods of P
+    // accesses; every period ends in W accesses of detailed warming and U measured accesses, with
+    // the timing model on. the rest of the period only updates the cache (functional warming),
+    // so the cache state is always exact and only the timing model is sampled. every measured
+    // window is one sample of the miss ratio and the average latency; a last, partial period
+    // is not measured
+    private static class smartsSampler {
+        private cache c;
+        private timingModel timing;
+        private int unit, warming, period;
+        private int phase; // accesses into the current period
+        private long windowMisses, windowLatency;
+        long accesses, samples;
+        private double missSum, missSquares, latencySum, latencySquares;
+
+        public smartsSampler(cache c, int unit, int warming, int period) {
+            if (unit < 1 || warming < 0 || unit + warming > period) {
+                fail("--smarts needs U >= 1, W >= 0 and U + W <= P, got " + unit + "," + warming + "," + period);
+            }
+            this.c = c;
+            this.timing = c.timing;
+            this.unit = unit;
+            this.warming = warming;
+            this.period = period;
+        }
+
+        void run() {
+            accessBatch batch = new accessBatch();
+            accessBatch segment = new accessBatch();
+            resultBatch results = new resultBatch();
+            int detailedFrom = period - unit - warming, measuredFrom = period - unit;
+            while (traceNextBatch(batch) > 0) {
+                accesses += batch.count;
+                // cut the batch where the phase changes, and run each piece in its own mode
+                for (int i = 0; i < batch.count; ) {
+                    int end = phase < detailedFrom ? detailedFrom : phase < measuredFrom ? measuredFrom : period;
+                    int n = Integer.min(batch.count - i, end - phase);
+                    segment.clear();
+                    segment.copyFrom(batch, i, n);
+                    if (phase < detailedFrom) {
+                        c.timing = null;
+                        timing.skip(n); // time passes as if each access took one issue cycle
+                        c.process(segment, results);
+                    } else {
+                        c.timing = timing;
+                        long latencyBefore = timing.latencySum;
+                        c.process(segment, results);
+                        if (phase >= measuredFrom) {
+                            windowLatency += timing.latencySum - latencyBefore;
+                            for (int j = 0; j < n; j++) {
+                                if (!results.hit[j]) {
+                                    windowMisses++;
+                                }
+                            }
+                        }
+                    }
+                    i += n;
+                    phase += n;
+                    if (phase == period) {
+                        endWindow();
+                    }
+                }
+            }
+            c.timing = timing;
+        }
+
+        private void endWindow() {
+            double miss = (double) windowMisses / unit;
+            double latency = (double) windowLatency / unit;
+            samples++;
+            missSum += miss;
+            missSquares += miss * miss;
+            latencySum += latency;
+            latencySquares += latency * latency;
+            windowMisses = 0;
+            windowLatency = 0;
+            phase = 0;
+        }
+
+        void printSummary() {
+            out.write(String.format("smarts: %d windows of %d measured accesses (%d warming) every %d, %d of %d accesses measured",
+                samples, unit, warming, period, samples * unit, accesses));
+            out.newline();
+            if (samples == 0) {
+                return;
+            }
+            printEstimate("miss ratio", missSum / samples, halfWidth(missSum, missSquares));
+            printEstimate("AMAT", latencySum / samples, halfWidth(latencySum, latencySquares));
+        }
+
+        // 95% confidence half-width of a sample mean, -1 with fewer than two samples
+        private double halfWidth(double sum, double squares) {
+            if (samples < 2) {
+                return -1;
+            }
+            double mean = sum / samples;
+            double variance = (squares - samples * mean * mean) / (samples - 1);
+            return CONFIDENCE_Z * squareRoot(variance / samples);
+        }
+    }
+
+    // stateFile class - a checkpoint file written or read through memory-mapped windows of at
+    // most WINDOW_SIZE bytes, so a state larger than one mapping can hold still fits. a value
+    // never straddles two windows: the window moves up to the current position whenever the next
+    // one would not fit, and arrays are copied a window's worth at a time
+    static class stateFile {
+        static final int WINDOW_SIZE = 1 << 28;
+
+        private FileChannel channel;
+        private FileChannel.MapMode mode;
+        private long size;        // bytes in the file
+        private long windowStart; // file offset of window[0]
+        private MappedByteBuffer window;
+
+        public stateFile(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+            this.channel = channel;
+            this.mode = mode;
+            this.size = size;
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            if (window != null && mode == FileChannel.MapMode.READ_WRITE) {
+                window.force();
+            }
+            windowStart = position;
+            window = channel.map(mode, position, Long.min(WINDOW_SIZE, size - position));
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // the window, moved if fewer than `bytes` are left in it. running past the end of the
+        // file is a BufferUnderflowException, as it would be with a single mapping
+        private MappedByteBuffer room(int bytes) throws IOException {
+            if (window.remaining() < bytes) {
+                map(windowStart + window.position());
+                if (window.remaining() < bytes) {
+                    throw new BufferUnderflowException();
+                }
+            }
+            return window;
+        }
+
+        void force() {
+            window.force();
+        }
+
+        void put(byte value) throws IOException {
+            room(1).put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            room(4).putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            room(8).putLong(value);
+        }
+
+        byte get() throws IOException {
+            return room(1).get();
+        }
+
+        int getInt() throws IOException {
+            return room(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return room(8).getLong();
+        }
+
+        void put(byte[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                int n = Integer.min(room(1).remaining(), values.length - i);
+                window.put(values, i, n);
+                i += n;
+            }
+        }
+
+        void get(byte[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                int n = Integer.min(room(1).remaining(), values.length - i);
+                window.get(values, i, n);
+                i += n;
+            }
+        }
+
+        void putInts(int[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                int n = Integer.min(room(4).remaining() / 4, values.length - i);
+                window.asIntBuffer().put(values, i, n);
+                window.position(window.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        void getInts(int[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                int n = Integer.min(room(4).remaining() / 4, values.length - i);
+                window.asIntBuffer().get(values, i, n);
+                window.position(window.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        void putLongs(long[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                int n = Integer.min(room(8).remaining() / 8, values.length - i);
+                window.asLongBuffer().put(values, i, n);
+                window.position(window.position() + 8 * n);
+                i += n;
+            }
+        }
+
+        void getLongs(long[] values) throws IOException {
+            for (int i = 0; i < values.length; ) {
+                int n = Integer.min(room(8).remaining() / 8, values.length - i);
+                window.asLongBuffer().get(values, i, n);
+                window.position(window.position() + 8 * n);
+                i += n;
+            }
+        }
+    }
+
+    // checkpoint class - a single cache's state in a binary file, written and read through
+    // memory-mapped windows so saving and restoring are bulk copies. little-endian, back to back:
+    //   header   magic, the cache geometry, policy and write policy, whether block data is
+    //            tracked, the trace (its length, accesses consumed, the byte offset and line
+    //            number of the next line or -1 where the reader cannot seek) and the cache's
+    //            running totals
+    //   state    cache.saveState: tags, state bits, policy metadata, block data, non-zero RAM
+    // a checkpoint is written to a temporary file first and renamed over the old one, so a run
+    // that dies while saving still leaves the previous checkpoint intact
+    private static class checkpoint {
+        static final byte[] MAGIC = {'C', 'S', 'I', 'M', 'C', 'K', 'P', '3'};
+
+        int sizeKB, ways, blockSize;
+        String policy;
+        boolean trackData, writeThrough, writeAllocate;
+        long traceLength, accesses, offset, lineNumber;
+
+        private FileChannel channel; // set by open and kept open until restore
+        private stateFile mapped;    // positioned after the trace fields
+
+        // saving during a run: where to, and every how many accesses (0: only at the end)
+        String file;
+        long interval, nextSave;
+
+        // count a processed batch and save if the interval has passed
+        void advance(cache c, int n) {
+            accesses += n;
+            if (interval > 0 && accesses >= nextSave) {
+                save(c);
+                nextSave = accesses + interval;
+            }
+        }
+
+        // take the trace position from the reader and write the checkpoint file. the log is
+        // flushed first so the output on disk ends exactly where a resumed run will go on
+        void save(cache c) {
+            offset = -1;
+            lineNumber = -1;
+            if (traceFileReader instanceof traceReader) {
+                offset = ((traceReader) traceFileReader).offset();
+                lineNumber = ((traceReader) traceFileReader).lineNumber();
+            }
+            out.flush();
+            try {
+                write(file, c);
+            } catch (IOException e) {
+                fail("Failed to write checkpoint: " + e.getMessage());
+            }
+        }
+
+        // the header fields a restore checks or uses, then the cache's totals
+        private int headerBytes() {
+            return MAGIC.length + 4 * 3 + 3 + 4 + policy.length() + 8 * 4 + 8 * 10;
+        }
+
+        /**
+         * Saves a cache and the trace position to a file.
+         * @param filename: the checkpoint file, replaced if it exists
+         * @param c: the cache, between two batches
+         */
+        void write(String filename, cache c) throws IOException {
+            long size = headerBytes() + c.stateBytes();
+            Path target = Paths.get(filename);
+            Path temp = Paths.get(filename + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                stateFile b = new stateFile(channel, FileChannel.MapMode.READ_WRITE, size);
+                b.put(MAGIC);
+                b.putInt(sizeKB);
+                b.putInt(ways);
+                b.putInt(blockSize);
+                b.put((byte) (trackData ? 1 : 0));
+                b.put((byte) (writeThrough ? 1 : 0));
+                b.put((byte) (writeAllocate ? 1 : 0));
+                b.putInt(policy.length());
+                b.put(policy.getBytes(StandardCharsets.US_ASCII));
+                for (long v : new long[] {traceLength, accesses, offset, lineNumber,
+                    c.loadHits, c.loadMisses, c.storeHits, c.storeMisses, c.dirtyEvictions, c.cleanEvictions,
+                    c.backInvalidations, c.memoryReads, c.memoryWrites, c.memoryWriteBytes}) {
+                    b.putLong(v);
+                }
+                c.saveState(b);
+                b.force();
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Reads a checkpoint's header, for checking it against the command line.
+         * @param filename: the checkpoint file
+         * @return the header, with the file left mapped for restore
+         */
+        static checkpoint open(String filename) throws IOException {
+            checkpoint cp = new checkpoint();
+            cp.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            cp.mapped = new stateFile(cp.channel, FileChannel.MapMode.READ_ONLY, cp.channel.size());
+            stateFile b = cp.mapped;
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                b.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    cp.channel.close();
+                    throw new IOException(filename + " is not a cachesim checkpoint");
+                }
+                cp.sizeKB = b.getInt();
+                cp.ways = b.getInt();
+                cp.blockSize = b.getInt();
+                cp.trackData = b.get() != 0;
+                cp.writeThrough = b.get() != 0;
+                cp.writeAllocate = b.get() != 0;
+                byte[] policy = new byte[b.getInt()];
+                b.get(policy);
+                cp.policy = new String(policy, StandardCharsets.US_ASCII);
+                cp.traceLength = b.getLong();
+                cp.accesses = b.getLong();
+                cp.offset = b.getLong();
+                cp.lineNumber = b.getLong();
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                cp.channel.close();
+                throw new IOException(filename + " is truncated or not a cachesim checkpoint");
+            }
+            return cp;
+        }
+
+        // load the totals and the state into a cache built with the checkpoint's geometry
+        void restore(cache c) {
+            stateFile b = mapped;
+            try {
+                c.loadHits = b.getLong();
+                c.loadMisses = b.getLong();
+                c.storeHits = b.getLong();
+                c.storeMisses = b.getLong();
+                c.dirtyEvictions = b.getLong();
+                c.cleanEvictions = b.getLong();
+                c.backInvalidations = b.getLong();
+                c.memoryReads = b.getLong();
+                c.memoryWrites = b.getLong();
+                c.memoryWriteBytes = b.getLong();
+                c.loadState(b);
+                channel.close();
+            } catch (BufferUnderflowException e) {
+                fail("Checkpoint is truncated");
+            } catch (IOException e) {
+                fail("Failed to read checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    // writeBuffer class - a coalescing write buffer between a cache and RAM. each entry is one
+    // block with a mask of the bytes written to it; writes to a block already waiting merge into
+    // its entry, and when the buffer is full the oldest entry drains to memory
+    private static class writeBuffer {
+        private int capacity, blockSize;
+        private sparseMemory RAM;
+        private long[] block;       // per slot
+        private byte[] data;        // per slot, blockSize bytes
+        private boolean[] written;  // per slot and byte
+        private int[] order;        // slots in use, oldest first
+        private int count;
+
+        long writes, coalesced, drains, readDrains, bytesDrained, occupancySum;
+        int maxOccupancy;
+
+        public writeBuffer(int capacity, int blockSize, sparseMemory RAM) {
+            this.capacity = capacity;
+            this.blockSize = blockSize;
+            this.RAM = RAM;
+            block = new long[capacity];
+            data = new byte[capacity * blockSize];
+            written = new boolean[capacity * blockSize];
+            order = new int[capacity];
+            for (int i = 0; i < capacity; i++) {
+                order[i] = i;
+            }
+        }
+
+        // take `size` bytes for address, which must not cross a block boundary
+        void write(int address, byte[] src, int srcOffset, int size) {
+            long b = Integer.toUnsignedLong(address) / blockSize;
+            int offset = address & (blockSize - 1);
+            writes++;
+            int slot = find(b);
+            if (slot >= 0) {
+                coalesced++;
+            } else {
+                if (count == capacity) {
+                    drain(0);
+                }
+                slot = order[count++];
+                block[slot] = b;
+            }
+            int at = slot * blockSize;
+            System.arraycopy(src, srcOffset, data, at + offset, size);
+            Arrays.fill(written, at + offset, at + offset + size, true);
+            occupancySum += count;
+            if (count > maxOccupancy) {
+                maxOccupancy = count;
+            }
+        }
+
+        // drain the entry for a block about to be read from memory, if there is one
+        void flush(long b) {
+            for (int i = 0; i < count; i++) {
+                if (block[order[i]] == b) {
+                    readDrains++;
+                    drain(i);
+                    return;
+                }
+            }
+        }
+
+        void flushAll() {
+            while (count > 0) {
+                drain(0);
+            }
+        }
+
+        private int find(long b) {
+            for (int i = 0; i < count; i++) {
+                if (block[order[i]] == b) {
+                    return order[i];
+                }
+            }
+            return -1;
+        }
+
+        // write the i-th oldest entry's written bytes to memory, one run of adjacent bytes at a time
+        private void drain(int i) {
+            int slot = order[i];
+            int at = slot * blockSize;
+            int bytes = 0;
+            for (int p = 0; p < blockSize; ) {
+                if (!written[at + p]) {
+                    p++;
+                    continue;
+                }
+                int run = p;
+                while (run < blockSize && written[at + run]) {
+                    run++;
+                }
+                RAM.writeBytes(block[slot], p, data, at + p, run - p);
+                bytes += run - p;
+                p = run;
+            }
+            Arrays.fill(written, at, at + blockSize, false);
+            drains++;
+            bytesDrained += bytes;
+
+            // keep the slots in age order, the freed one goes to the end
+            System.arraycopy(order, i + 1, order, i, count - i - 1);
+            order[--count] = slot;
+        }
+    }
+
+    // prefetcher interface - watches the demand stream (as block numbers) and names blocks to fetch early
+    private interface prefetcher {
+        // called after every demand access; puts block numbers into requests and returns how many
+        int observe(int block, boolean miss, int[] requests);
+    }
+
+    // most blocks a prefetcher may request after one access
+    static final int MAX_PREFETCH_DEGREE = 64;
+
+    /**
+     * Builds a prefetcher from its command line name and optional parameters.
+     * @param spec: next[:N], stride[:degree] or stream[:buffers[:depth]]
+     * @param blockSize: block size of the cache it feeds
+     * @return the prefetcher, or null if the name is not recognised
+     */
+    static prefetcher createPrefetcher(String spec, int blockSize) {
+        String[] parts = spec.split(":");
+        int first = parts.length > 1 ? intArgument(parts[1], "--prefetch") : 0;
+        int second = parts.length > 2 ? intArgument(parts[2], "--prefetch") : 0;
+        if ((parts[0].equals("stream") ? second : first) > MAX_PREFETCH_DEGREE) {
+            fail("A prefetcher may fetch at most " + MAX_PREFETCH_DEGREE + " blocks ahead");
+        }
+        switch (parts[0]) {
+            case "next":
+                return new nextLinePrefetcher(first > 0 ? first : 1);
+            case "stride":
+                return new stridePrefetcher(first > 0 ? first : 2, blockSize);
+            case "stream":
+                return new streamBufferPrefetcher(first > 0 ? first : 4, second > 0 ? second : 4);
+            default:
+                return null;
+        }
+    }
+
+    // nextLinePrefetcher class - on a miss, fetch the next N blocks
+    private static class nextLinePrefetcher implements prefetcher {
+        private int degree;
+
+        public nextLinePrefetcher(int degree) {
+            this.degree = degree;
+        }
+
+        public int observe(int block, boolean miss, int[] requests) {
+            if (!miss) {
+                return 0;
+            }
+            for (int i = 0; i < degree; i++) {
+                requests[i] = block + i + 1;
+            }
+            return degree;
+        }
+    }
+
+    // stridePrefetcher class - a reference prediction table without PCs: accesses are grouped by
+    // 4 KB region instead, in a direct-mapped table. a region whose block stride repeats twice
+    // is steady and gets `degree` blocks fetched ahead along the stride
+    private static class stridePrefetcher implements prefetcher {
+        private static final int ENTRIES = 256;
+        private static final int REGION_SHIFT = 12;
+
+        private int degree;
+        private int regionShift; // block number -> region number
+        private int[] region = new int[ENTRIES];
+        private int[] lastBlock = new int[ENTRIES];
+        private int[] stride = new int[ENTRIES];
+        private int[] confidence = new int[ENTRIES];
+        private boolean[] valid = new boolean[ENTRIES];
+
+        public stridePrefetcher(int degree, int blockSize) {
+            this.degree = degree;
+            this.regionShift = Integer.max(0, REGION_SHIFT - Integer.numberOfTrailingZeros(blockSize));
+        }
+
+        public int observe(int block, boolean miss, int[] requests) {
+            int r = block >>> regionShift;
+            int e = (r ^ (r >>> 8)) & (ENTRIES - 1);
+            if (!valid[e] || region[e] != r) {
+                valid[e] = true;
+                region[e] = r;
+                lastBlock[e] = block;
+                stride[e] = 0;
+                confidence[e] = 0;
+                return 0;
+            }
+            int delta = block - lastBlock[e];
+            if (delta == 0) {
+                return 0;
+            }
+            lastBlock[e] = block;
+            if (delta == stride[e]) {
+                if (confidence[e] < 3) {
+                    confidence[e]++;
+                }
+            } else {
+                stride[e] = delta;
+                confidence[e] = 0;
+            }
+            if (confidence[e] < 2) {
+                return 0;
+            }
+            for (int i = 0; i < degree; i++) {
+                requests[i] = block + (i + 1) * delta;
+            }
+            return degree;
+        }
+    }
+
+    // streamBufferPrefetcher class - a few stream buffers, each following one ascending or
+    // descending run of blocks and keeping `depth` blocks fetched ahead of it. a miss no buffer
+    // expects takes over the least recently used buffer. fetched blocks go into the cache rather
+    // than a separate buffer, so they are counted like any other prefetch
+    private static class streamBufferPrefetcher implements prefetcher {
+        private int depth;
+        private int[] head;      // per buffer, next block the stream should touch
+        private int[] direction; // +1 or -1
+        private int[] ahead;     // blocks already fetched past head
+        private long[] lastUse;
+        private boolean[] valid;
+        private long time;
+        private int lastMiss;
+
+        public streamBufferPrefetcher(int buffers, int depth) {
+            this.depth = depth;
+            head = new int[buffers];
+            direction = new int[buffers];
+            ahead = new int[buffers];
+            lastUse = new long[buffers];
+            valid = new boolean[buffers];
+        }
+
+        public int observe(int block, boolean miss, int[] requests) {
+            time++;
+            int previousMiss = lastMiss;
+            if (miss) {
+                lastMiss = block;
+            }
+            for (int b = 0; b < head.length; b++) {
+                // the stream moved on if the access is within the blocks fetched ahead of it
+                int step = (block - head[b]) * direction[b];
+                if (valid[b] && step >= 0 && step <= ahead[b]) {
+                    head[b] = block + direction[b];
+                    ahead[b] -= step + 1;
+                    lastUse[b] = time;
+                    return topUp(b, requests);
+                }
+            }
+            if (!miss) {
+                return 0;
+            }
+
+            // unused buffers have lastUse 0, so they go first
+            int b = 0;
+            for (int i = 1; i < head.length; i++) {
+                if (lastUse[i] < lastUse[b]) {
+                    b = i;
+                }
+            }
+            valid[b] = true;
+            direction[b] = block == previousMiss - 1 ? -1 : 1;
+            head[b] = block + direction[b];
+            ahead[b] = -1;
+            lastUse[b] = time;
+            return topUp(b, requests);
+        }
+
+        // fetch until `depth` blocks past the head are in flight
+        private int topUp(int b, int[] requests) {
+            int n = 0;
+            while (ahead[b] + 1 < depth) {
+                ahead[b]++;
+                requests[n++] = head[b] + ahead[b] * direction[b];
+            }
+            return n;
+        }
+    }
+
+    // prefetchUnit class - a cache's prefetcher and what became of its prefetches:
+    //   accuracy     prefetched lines used by a demand access before eviction / prefetches issued
+    //   coverage     demand misses avoided (useful prefetches) / (those + remaining demand misses)
+    //   timeliness   demand accesses between a prefetch and the first use of its line
+    //   pollution    valid lines a prefetch displaced, and demand misses on exactly those blocks
+    private static class prefetchUnit {
+        prefetcher policy;
+        String name;
+        int[] requests = new int[MAX_PREFETCH_DEGREE];
+        private long[] issuedAt;        // per line, demand access count when it was prefetched
+        private intIntMap displacedBy = new intIntMap(); // block -> 1 while a prefetch's eviction of it is unanswered
+        private long accesses;
+
+        long issued, useful, unused, displaced, pollutionMisses, leadSum;
+
+        public prefetchUnit(String spec, cache owner) {
+            policy = createPrefetcher(spec, owner.blockSize);
+            if (policy == null) {
+                fail("Unknown prefetcher: " + spec + ", expected next[:N], stride[:degree] or stream[:buffers[:depth]]");
+            }
+            name = spec;
+            issuedAt = new long[owner.numSets * owner.numOfBlockPerSet];
+        }
+
+        // a demand access to this block
+        void demand(int block, boolean miss) {
+            accesses++;
+            if (miss && displacedBy.get(block) == 1) {
+                pollutionMisses++;
+                displacedBy.put(block, 0);
+            }
+        }
+
+        // a demand access hit a prefetched line for the first time
+        void used(int line) {
+            useful++;
+            leadSum += accesses - issuedAt[line];
+        }
+
+        // a prefetch filled this line, displacing victimBlock if `evicted`
+        void filled(int line, int block, int victimBlock, boolean evicted) {
+            issued++;
+            issuedAt[line] = accesses;
+            displacedBy.put(block, 0);
+            if (evicted) {
+                displaced++;
+                displacedBy.put(victimBlock, 1);
+            }
+        }
+
+        void printSummary(cache c) {
+            long misses = c.loadMisses + c.storeMisses;
+            out.write(String.format("prefetch (%s): %d issued, %d useful, %d evicted unused, accuracy %.4f, coverage %.4f",
+                name, issued, useful, unused, issued == 0 ? 0 : (double) useful / issued,
+                useful + misses == 0 ? 0 : (double) useful / (useful + misses)));
+            out.newline();
+            out.write(String.format("prefetch timeliness: %.1f accesses from prefetch to first use; pollution: %d lines displaced, %d misses on them",
+                useful == 0 ? 0 : (double) leadSum / useful, displaced, pollutionMisses));
+            out.newline();
+        }
+    }
+
+    // intIntMap class - open addressing int -> int hash map with linear probing, no boxing
+    private static class intIntMap {
+        private static final int MISSING = Integer.MIN_VALUE;
+
+        private int[] keys = new int[16];
+        private int[] values = new int[16];
+        private boolean[] used = new boolean[16];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        // the value stored for key, or MISSING
+        int get(int key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return MISSING;
+        }
+
+        void put(int key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys, oldValues = values;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // stackDistance class - Mattson stack-distance analysis for a fixed block size and set mapping.
+    // per set, every block's most recent access time is marked in a Fenwick tree over that set's
+    // access times, so the LRU stack distance of a re-reference (distinct blocks touched since its
+    // last use) is a range count in O(log n). one pass gives the LRU miss count for every
+    // associativity: an access misses in an A-way cache exactly when its distance is >= A
+    private static class stackDistance {
+        private int numSets, blockSize;
+        private intIntMap[] lastUse;  // per set, tag -> time of its latest access
+        private int[][] fenwick;      // per set, 1-based tree over access times
+        private int[] time;           // per set, accesses so far
+        private long[] histogram = new long[64];
+        private int maxDistance = -1;
+        long accesses, coldMisses;
+
+        public stackDistance(int numSets, int blockSize) {
+            this.numSets = numSets;
+            this.blockSize = blockSize;
+            lastUse = new intIntMap[numSets];
+            fenwick = new int[numSets][];
+            time = new int[numSets];
+            for (int i = 0; i < numSets; i++) {
+                lastUse[i] = new intIntMap();
+                fenwick[i] = new int[17];
+            }
+        }
+
+        public void access(int address) {
+            int set = cache.setIndexOf(address, blockSize, numSets);
+            int tag = cache.tagOf(address, blockSize, numSets);
+            accesses++;
+
+            int now = ++time[set];
+            if (now == fenwick[set].length) {
+                growTree(set);
+            }
+            int[] tree = fenwick[set];
+
+            int last = lastUse[set].get(tag);
+            if (last == intIntMap.MISSING) {
+                coldMisses++;
+            } else {
+                int distance = prefixSum(tree, now - 1) - prefixSum(tree, last);
+                record(distance);
+                add(tree, last, -1);
+            }
+            add(tree, now, 1);
+            lastUse[set].put(tag, now);
+        }
+
+        // LRU misses for an A-way cache with this set mapping
+        public long missesForWays(int ways) {
+            long misses = coldMisses;
+            for (int d = ways; d <= maxDistance; d++) {
+                misses += histogram[d];
+            }
+            return misses;
+        }
+
+        public int maxDistance() {
+            return maxDistance;
+        }
+
+        private void record(int distance) {
+            if (distance >= histogram.length) {
+                histogram = Arrays.copyOf(histogram, Integer.highestOneBit(distance) << 1);
+            }
+            histogram[distance]++;
+            if (distance > maxDistance) {
+                maxDistance = distance;
+            }
+        }
+
+        // double a tree of capacity n (a power of two). the new nodes n + 1 .. 2n - 1 cover only
+        // unused times, and node 2n covers everything so far: one mark per distinct block
+        private void growTree(int set) {
+            int[] tree = fenwick[set];
+            int n = tree.length - 1;
+            int[] grown = Arrays.copyOf(tree, 2 * n + 1);
+            grown[2 * n] = lastUse[set].size();
+            fenwick[set] = grown;
+        }
+
+        private static int prefixSum(int[] tree, int i) {
+            int sum = 0;
+            for (; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+
+        private static void add(int[] tree, int i, int delta) {
+            for (; i < tree.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+    }
+
+    // accessBatch class - a reusable struct-of-arrays batch of trace accesses. the store data of
+    // the whole batch is packed into one arena, so filling a warm batch allocates nothing
+    static class accessBatch {
+        static final int CAPACITY = 4096;
+
+        int count;
+        int[] core = new int[CAPACITY]; // issuing core, 0 unless the trace names one
+        boolean[] isStore = new boolean[CAPACITY];
+        int[] address = new int[CAPACITY];
+        int[] size = new int[CAPACITY];
+        int[] dataOffset = new int[CAPACITY]; // a store's data starts at data[dataOffset[i]]
+        byte[] data = new byte[CAPACITY * 8];
+        int dataLength;
+
+        void clear() {
+            count = 0;
+            dataLength = 0;
+        }
+
+        boolean isFull() {
+            return count == CAPACITY;
+        }
+
+        // room for `length` more bytes of store data; returns where they go
+        int reserveData(int length) {
+            if (data.length - dataLength < length) {
+                data = Arrays.copyOf(data, Integer.max(2 * data.length, dataLength + length));
+            }
+            return dataLength;
+        }
+
+        // append an access; a store's data must already be at data[offset] (see reserveData)
+        void add(boolean store, int addr, int accessSize, int offset) {
+            add(0, store, addr, accessSize, offset);
+        }
+
+        void add(int coreId, boolean store, int addr, int accessSize, int offset) {
+            core[count] = coreId;
+            isStore[count] = store;
+            address[count] = addr;
+            size[count] = accessSize;
+            dataOffset[count] = offset;
+            if (store) {
+                dataLength = offset + accessSize;
+            }
+            count++;
+        }
+
+        // append accesses [from, from + n) of another batch
+        void copyFrom(accessBatch other, int from, int n) {
+            for (int i = from; i < from + n; i++) {
+                int offset = 0;
+                if (other.isStore[i]) {
+                    offset = reserveData(other.size[i]);
+                    System.arraycopy(other.data, other.dataOffset[i], data, offset, other.size[i]);
+                }
+                add(other.core[i], other.isStore[i], other.address[i], other.size[i], offset);
+            }
+        }
+
+        // one access as a standalone CacheAccess, for the one-at-a-time trace API
+        CacheAccess toAccess(int i) {
+            CacheAccess access = new CacheAccess();
+            access.isStore = isStore[i];
+            access.address = address[i];
+            access.accessSize = size[i];
+            if (access.isStore) {
+                access.data = Arrays.copyOfRange(data, dataOffset[i], dataOffset[i] + size[i]);
+            }
+            return access;
+        }
+    }
+
+    // resultBatch class - the outcome of every access in an accessBatch: hit or miss, the line it
+    // replaced, and for loads the bytes read (packed into one reusable arena)
+    static class resultBatch {
+        boolean[] hit = new boolean[accessBatch.CAPACITY];
+        boolean[] evicted = new boolean[accessBatch.CAPACITY];
+        boolean[] victimDirty = new boolean[accessBatch.CAPACITY];
+        int[] victimAddress = new int[accessBatch.CAPACITY];
+        int[] loadOffset = new int[accessBatch.CAPACITY]; // a load's bytes start at loadData[loadOffset[i]]
+        byte[] loadData = new byte[accessBatch.CAPACITY * 8];
+        int loadLength;
+
+        void clear() {
+            loadLength = 0;
+        }
+
+        // room for one load's bytes; returns where they go
+        int reserveLoad(int length) {
+            if (loadData.length - loadLength < length) {
+                loadData = Arrays.copyOf(loadData, Integer.max(2 * loadData.length, loadLength + length));
+            }
+            int offset = loadLength;
+            loadLength += length;
+            return offset;
+        }
+    }
+
+    // traceSource interface - where traceFinished/traceNextAccess/traceNextBatch get their accesses from
+    private interface traceSource {
+        // true once every access has been returned
+        boolean finished();
+
+        // the next access; only called while !finished()
+        CacheAccess next();
+
+        // clear the batch and fill it with up to accessBatch.CAPACITY accesses; 0 at the end
+        int fill(accessBatch batch);
+    }
+
+    // traceReader class - parses accesses straight out of a byte buffer with hand-written
+    // hex/decimal decoding, so no Strings are built per line or per field.
+    // grammar, one access per line: "load 0x<addr> <size>" or "store 0x<addr> <size> <hex data>"
+    private static class traceReader implements traceSource {
+        private static final int BUFFER_SIZE = 1 << 20;
+        private static final byte[] HEX_VALUE = new byte[256];
+        private static final byte[] LOAD = {'l', 'o', 'a', 'd'};
+        private static final byte[] STORE = {'s', 't', 'o', 'r', 'e'};
+
+        static {
+            Arrays.fill(HEX_VALUE, (byte) -1);
+            for (int c = '0'; c <= '9'; c++) {
+                HEX_VALUE[c] = (byte) (c - '0');
+            }
+            for (int c = 'a'; c <= 'f'; c++) {
+                HEX_VALUE[c] = (byte) (c - 'a' + 10);
+                HEX_VALUE[c - 'a' + 'A'] = (byte) (c - 'a' + 10);
+            }
+        }
+
+        protected ByteBuffer buf;
+        protected int pos, limit; // unread bytes are buf[pos, limit)
+        protected long bufferStart; // trace offset of buf[0]
+        protected boolean eof;
+        private InputStream in;
+        protected long lineNumber; // newlines consumed so far
+        private accessBatch scratch = new accessBatch(); // for next()
+        private traceException pendingError; // raised by the fill() after the one that hit it
+        boolean skipStoreData; // --stats-only: stores are checked but their data is not decoded
+
+        public traceReader(InputStream in) {
+            this.in = in;
+            this.buf = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        // for subclasses that supply their own buffer through refill()
+        protected traceReader() {
+        }
+
+        // make more bytes available after limit, keeping buf[pos, limit). returns false at end of input
+        protected boolean refill() throws IOException {
+            byte[] array = buf.array();
+            int remaining = limit - pos;
+            if (remaining == array.length) {
+                // a single line longer than the buffer
+                array = Arrays.copyOf(array, array.length * 2);
+                buf = ByteBuffer.wrap(array);
+            } else {
+                System.arraycopy(array, pos, array, 0, remaining);
+            }
+            bufferStart += pos;
+            pos = 0;
+            limit = remaining;
+            int n = in.read(array, limit, array.length - limit);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            limit += n;
+            return true;
+        }
+
+        // where the next line starts, and its line number less one; a checkpoint resumes there
+        long offset() {
+            return bufferStart + pos;
+        }
+
+        long lineNumber() {
+            return lineNumber;
+        }
+
+        // start reading at a checkpoint's offset instead of the beginning. only before reading
+        void seek(long offset, long line) throws IOException {
+            in.skipNBytes(offset);
+            bufferStart = offset;
+            lineNumber = line;
+        }
+
+        // skip blank lines; true once only whitespace is left
+        public boolean finished() {
+            try {
+                while (true) {
+                    while (pos < limit && isSpace(buf.get(pos))) {
+                        if (buf.get(pos) == '\n') {
+                            lineNumber++;
+                        }
+                        pos++;
+                    }
+                    if (pos < limit) {
+                        return false;
+                    }
+                    if (eof || !refill()) {
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                throw new traceException("Failed to read trace file: " + e.getMessage());
+            }
+        }
+
+        // parse the next line into a new CacheAccess. must only be called when !finished()
+        public CacheAccess next() {
+            scratch.clear();
+            parseLine(scratch);
+            return scratch.toAccess(0);
+        }
+
+        public int fill(accessBatch batch) {
+            batch.clear();
+            if (pendingError != null) {
+                throw pendingError;
+            }
+            try {
+                while (!batch.isFull() && !finished()) {
+                    parseLine(batch);
+                }
+            } catch (traceException e) {
+                // hand out the accesses before the bad line first, fail on the next call
+                if (batch.count == 0) {
+                    throw e;
+                }
+                pendingError = e;
+            }
+            return batch.count;
+        }
+
+        // parse the next line and append it to batch. must only be called when !finished()
+        private void parseLine(accessBatch batch) {
+            int end = lineEnd();
+
+            // multicore traces start each line with the core id, which no access type can look like
+            int core = 0;
+            int typeStart = pos;
+            byte first = buf.get(pos);
+            if (first >= '0' && first <= '9') {
+                int p = pos;
+                for (; p < end && !isSpace(buf.get(p)); p++) {
+                    int v = buf.get(p) - '0';
+                    if (v < 0 || v > 9 || core > (Integer.MAX_VALUE - v) / 10) {
+                        malformed("bad core id");
+                    }
+                    core = core * 10 + v;
+                }
+                typeStart = skipSpace(p, end);
+            }
+
+            // access type (checked after the numbers, like the old Scanner parser)
+            int typeEnd = skipToken(typeStart, end);
+
+            // parse address and access size
+            int p = skipSpace(typeEnd, end);
+            if (p + 2 > end) {
+                malformed("missing address");
+            }
+            p += 2; // skip the 0x prefix
+            long address = 0;
+            int digits = 0;
+            for (; p < end && !isSpace(buf.get(p)); p++, digits++) {
+                int v = HEX_VALUE[buf.get(p) & 0xFF];
+                if (v < 0) {
+                    malformed("bad hex digit in address");
+                }
+                address = (address << 4) | v;
+                if (address > 0xFFFFFFFFL) {
+                    malformed("address does not fit in 32 bits");
+                }
+            }
+            if (digits == 0) {
+                malformed("missing address");
+            }
+
+            p = skipSpace(p, end);
+            int size = 0;
+            digits = 0;
+            for (; p < end && !isSpace(buf.get(p)); p++, digits++) {
+                int v = buf.get(p) - '0';
+                if (v < 0 || v > 9 || size > (Integer.MAX_VALUE - v) / 10) {
+                    malformed("bad access size");
+                }
+                size = size * 10 + v;
+            }
+            if (digits == 0) {
+                malformed("missing access size");
+            }
+            if (crossesBlock((int) address, size)) {
+                malformed("access crosses a " + traceBlockSize + "-byte block boundary");
+            }
+
+            // check access type
+            if (tokenEquals(typeStart, typeEnd, STORE)) {
+                // read data, two hex digits per byte, straight into the batch's arena
+                p = skipSpace(p, end);
+                if (end - p < 2 * size) {
+                    malformed("store data shorter than access size");
+                }
+                if (skipStoreData) {
+                    batch.add(core, true, (int) address, size, 0);
+                    pos = end;
+                    return;
+                }
+                int offset = batch.reserveData(size);
+                byte[] data = batch.data;
+                for (int i = 0; i < size; i++, p += 2) {
+                    int hi = HEX_VALUE[buf.get(p) & 0xFF];
+                    int lo = HEX_VALUE[buf.get(p + 1) & 0xFF];
+                    if ((hi | lo) < 0) {
+                        malformed("bad hex digit in store data");
+                    }
+                    data[offset + i] = (byte) ((hi << 4) | lo);
+                }
+                batch.add(core, true, (int) address, size, offset);
+            } else if (tokenEquals(typeStart, typeEnd, LOAD)) {
+                batch.add(core, false, (int) address, size, 0);
+            } else {
+                byte[] type = new byte[typeEnd - typeStart];
+                buf.get(typeStart, type);
+                throw new traceException("Invalid trace file access type" + new String(type, StandardCharsets.US_ASCII));
+            }
+
+            pos = end;
+        }
+
+        // index of the newline ending the current line (or of the end of input), refilling as needed
+        private int lineEnd() {
+            int scanned = pos;
+            try {
+                while (true) {
+                    for (int i = scanned; i < limit; i++) {
+                        if (buf.get(i) == '\n') {
+                            return i;
+                        }
+                    }
+                    scanned = limit - pos;
+                    if (eof || !refill()) {
+                        return limit;
+                    }
+                    scanned += pos;
+                }
+            } catch (IOException e) {
+                throw new traceException("Failed to read trace file: " + e.getMessage());
+            }
+        }
+
+        private int skipSpace(int p, int end) {
+            while (p < end && isSpace(buf.get(p))) {
+                p++;
+            }
+            return p;
+        }
+
+        private int skipToken(int p, int end) {
+            while (p < end && !isSpace(buf.get(p))) {
+                p++;
+            }
+            return p;
+        }
+
+        private boolean tokenEquals(int start, int end, byte[] word) {
+            if (end - start != word.length) {
+                return false;
+            }
+            for (int i = 0; i < word.length; i++) {
+                if (buf.get(start + i) != word[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isSpace(byte c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+        }
+
+        private void malformed(String reason) {
+            throw new traceException("Malformed trace file line " + (lineNumber + 1) + ": " + reason);
+        }
+    }
+
+    // mappedTraceReader class - parses straight out of the trace file mapped into memory.
+    // the file is mapped one window at a time, so traces larger than 2 GB work too
+    private static class mappedTraceReader extends traceReader {
+        private static final int WINDOW_SIZE = 1 << 28;
+
+        private FileChannel channel;
+        private long fileSize;
+        private int windowSize = WINDOW_SIZE;
+
+        public mappedTraceReader(String filename) throws IOException {
+            this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            this.fileSize = channel.size();
+        }
+
+        // the first window is mapped at the offset
+        @Override
+        void seek(long offset, long line) {
+            bufferStart = offset;
+            lineNumber = line;
+        }
+
+        // remap so the next window starts at the first unread byte
+        @Override
+        protected boolean refill() throws IOException {
+            long start = bufferStart + pos;
+            if (start + (limit - pos) >= fileSize) {
+                eof = true;
+                return false;
+            }
+            if (limit - pos == windowSize) {
+                // a single line longer than the window
+                windowSize = windowSize > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : windowSize * 2;
+            }
+            int length = (int) Long.min(windowSize, fileSize - start);
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            bufferStart = start;
+            pos = 0;
+            limit = length;
+            if (start + length == fileSize) {
+                eof = true;
+                channel.close();
+            }
+            return true;
+        }
+    }
+
+    // traceException class - a trace that cannot be read. readers throw it instead of exiting so
+    // a reader running on a decode thread can hand the error over in order with its accesses
+    private static class traceException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public traceException(String message) {
+            super(message);
+        }
+    }
+
+    // prefetchingTraceSource class - runs another trace source on a background decode thread.
+    // decoded accesses are handed over in batches through a bounded queue (a ring buffer), and
+    // drained batches go back through a second queue so their arrays are reused. decompression
+    // and parsing then overlap with the simulation instead of running before it
+    private static class prefetchingTraceSource implements traceSource {
+        private static final int QUEUE_DEPTH = 8;
+
+        // traceBatch class - a batch of decoded accesses, possibly ending the trace
+        private static class traceBatch {
+            accessBatch accesses = new accessBatch();
+            boolean last;
+            traceException error; // raised once the accesses before it are consumed
+        }
+
+        private BlockingQueue<traceBatch> full = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        private BlockingQueue<traceBatch> empty = new ArrayBlockingQueue<>(QUEUE_DEPTH + 2);
+        private traceBatch current;
+        private int index;
+
+        public prefetchingTraceSource(traceSource source) {
+            for (int i = 0; i < QUEUE_DEPTH + 2; i++) {
+                empty.add(new traceBatch());
+            }
+            current = new traceBatch(); // drained placeholder
+            Thread decoder = new Thread(() -> decode(source), "trace-decoder");
+            decoder.setDaemon(true);
+            decoder.start();
+        }
+
+        // decode thread: fill batches until the source runs out or fails
+        private void decode(traceSource source) {
+            try {
+                while (true) {
+                    traceBatch batch = empty.take();
+                    try {
+                        batch.last = source.fill(batch.accesses) == 0;
+                    } catch (traceException e) {
+                        // the accesses parsed before the error are still delivered
+                        batch.error = e;
+                        batch.last = true;
+                    }
+                    full.put(batch);
+                    if (batch.last) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public boolean finished() {
+            while (index == current.accesses.count) {
+                if (current.error != null) {
+                    throw current.error;
+                }
+                if (current.last) {
+                    return true;
+                }
+                try {
+                    traceBatch next = full.take();
+                    empty.add(current);
+                    current = next;
+                    index = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new traceException("Interrupted while reading the trace");
+                }
+            }
+            return false;
+        }
+
+        public CacheAccess next() {
+            finished();
+            return current.accesses.toAccess(index++);
+        }
+
+        public int fill(accessBatch batch) {
+            batch.clear();
+            if (finished()) {
+                return 0;
+            }
+            int n = current.accesses.count - index;
+            batch.copyFrom(current.accesses, index, n);
+            index += n;
+            return n;
+        }
+    }
+
+    // binary trace format, little-endian:
+    //   header  "CSIMBIN1", flags, record count, record bytes, arena bytes (five 8-byte fields)
+    //   records one long per access, packed like decodedTrace: address << 32 | size << 1 | isStore;
+    //           with FLAG_VARINT each access is instead a zigzag varint of the address delta
+    //           followed by a varint of size << 1 | isStore
+    //   arena   store data of every store, in trace order
+    static final byte[] BINARY_MAGIC = {'C', 'S', 'I', 'M', 'B', 'I', 'N', '1'};
+    static final int BINARY_HEADER_SIZE = 40;
+    static final long FLAG_VARINT = 1;
+
+    // binaryTraceReader class - replays a binary trace. records and store data are read
+    // through two buffers refilled with positional reads, so no per-field parsing is needed
+    private static class binaryTraceReader implements traceSource {
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        private FileChannel channel;
+        private boolean varint;
+        private long total, remaining; // accesses in the trace, and not yet returned
+        private ByteBuffer records = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer arena = ByteBuffer.allocate(BUFFER_SIZE);
+        private long recordPosition, recordEnd, arenaPosition, arenaEnd; // file offsets still to read
+        private int lastAddress;       // previous address, for delta decoding
+        private accessBatch scratch = new accessBatch(); // for next()
+        private traceException pendingError; // raised by the fill() after the one that hit it
+
+        public binaryTraceReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(header, 0);
+            header.flip();
+            header.position(BINARY_MAGIC.length);
+            long flags = header.getLong();
+            varint = (flags & FLAG_VARINT) != 0;
+            remaining = total = header.getLong();
+            long recordBytes = header.getLong();
+            long arenaBytes = header.getLong();
+            recordPosition = BINARY_HEADER_SIZE;
+            recordEnd = recordPosition + recordBytes;
+            arenaPosition = recordEnd;
+            arenaEnd = arenaPosition + arenaBytes;
+            if (arenaEnd > channel.size()) {
+                throw new IOException("truncated binary trace");
+            }
+            records.limit(0);
+            arena.limit(0);
+        }
+
+        public boolean finished() {
+            return remaining == 0;
+        }
+
+        public CacheAccess next() {
+            scratch.clear();
+            readOne(scratch);
+            return scratch.toAccess(0);
+        }
+
+        public int fill(accessBatch batch) {
+            batch.clear();
+            if (pendingError != null) {
+                throw pendingError;
+            }
+            try {
+                while (!batch.isFull() && remaining > 0) {
+                    readOne(batch);
+                }
+            } catch (traceException e) {
+                // hand out the accesses before the bad record first, fail on the next call
+                if (batch.count == 0) {
+                    throw e;
+                }
+                pendingError = e;
+            }
+            return batch.count;
+        }
+
+        // decode one access and append it to batch
+        private void readOne(accessBatch batch) {
+            try {
+                long record;
+                if (varint) {
+                    if (records.remaining() < 20) {
+                        recordPosition = refill(records, recordPosition, recordEnd);
+                    }
+                    lastAddress += zigzagDecode(readVarint());
+                    long sizeAndType = readVarint();
+                    record = ((long) lastAddress << 32) | (sizeAndType & 0xFFFFFFFFL);
+                } else {
+                    if (records.remaining() < 8) {
+                        recordPosition = refill(records, recordPosition, recordEnd);
+                    }
+                    record = records.getLong();
+                }
+
+                int size = (int) record >>> 1;
+                boolean isStore = (record & 1) != 0;
+                if (crossesBlock((int) (record >>> 32), size)) {
+                    throw new traceException("Binary trace access " + (total - remaining + 1)
+                        + " crosses a " + traceBlockSize + "-byte block boundary");
+                }
+                int offset = 0;
+                if (isStore) {
+                    offset = batch.reserveData(size);
+                    int copied = 0;
+                    while (copied < size) {
+                        if (!arena.hasRemaining()) {
+                            arenaPosition = refill(arena, arenaPosition, arenaEnd);
+                            if (!arena.hasRemaining()) {
+                                throw new IOException("store data runs past the end of the file");
+                            }
+                        }
+                        int n = Integer.min(arena.remaining(), size - copied);
+                        arena.get(batch.data, offset + copied, n);
+                        copied += n;
+                    }
+                }
+                batch.add(isStore, (int) (record >>> 32), size, offset);
+                remaining--;
+            } catch (IOException | BufferUnderflowException e) {
+                throw new traceException("Failed to read binary trace: "
+                    + (e.getMessage() != null ? e.getMessage() : "truncated records"));
+            }
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = records.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        // keep the unread bytes of buf and read more from [position, end) after them
+        private long refill(ByteBuffer buf, long position, long end) throws IOException {
+            buf.compact();
+            int want = (int) Long.min(buf.remaining(), end - position);
+            buf.limit(buf.position() + want);
+            while (buf.hasRemaining()) {
+                int n = channel.read(buf, position);
+                if (n < 0) {
+                    throw new IOException("truncated binary trace");
+                }
+                position += n;
+            }
+            buf.limit(buf.capacity());
+            buf.flip();
+            return position;
+        }
+
+        private void readFully(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    throw new IOException("truncated binary trace header");
+                }
+            }
+        }
+    }
+
+    // binaryTraceWriter class - writes the binary format. records go straight to the output and
+    // store data to a temporary arena file that is appended at the end, so converting needs
+    // neither the whole trace in memory nor a second pass
+    private static class binaryTraceWriter {
+        private FileChannel channel;
+        private Path arenaFile;
+        private OutputStream arenaOut;
+        private boolean varint;
+        private ByteBuffer records = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long count, recordBytes, arenaBytes;
+        private int lastAddress;
+
+        public binaryTraceWriter(Path file, boolean varint) throws IOException {
+            this.varint = varint;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            channel.position(BINARY_HEADER_SIZE);
+            arenaFile = Files.createTempFile(file.toAbsolutePath().getParent(), "arena", ".tmp");
+            arenaOut = new BufferedOutputStream(Files.newOutputStream(arenaFile), 1 << 20);
+        }
+
+        // append access i of the batch
+        public void add(accessBatch batch, int i) throws IOException {
+            if (records.remaining() < 20) {
+                drain();
+            }
+            int address = batch.address[i];
+            int size = batch.size[i];
+            long sizeAndType = ((long) size << 1) | (batch.isStore[i] ? 1 : 0);
+            if (varint) {
+                writeVarint(zigzagEncode(address - lastAddress));
+                writeVarint(sizeAndType);
+                lastAddress = address;
+            } else {
+                records.putLong(((long) address << 32) | sizeAndType);
+            }
+            if (batch.isStore[i]) {
+                arenaOut.write(batch.data, batch.dataOffset[i], size);
+                arenaBytes += size;
+            }
+            count++;
+        }
+
+        public void close() throws IOException {
+            drain();
+            arenaOut.close();
+            try (FileChannel arenaChannel = FileChannel.open(arenaFile, StandardOpenOption.READ)) {
+                long copied = 0;
+                while (copied < arenaBytes) {
+                    copied += arenaChannel.transferTo(copied, arenaBytes - copied, channel);
+                }
+            }
+            Files.delete(arenaFile);
+
+            ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(BINARY_MAGIC).putLong(varint ? FLAG_VARINT : 0).putLong(count).putLong(recordBytes)
+                .putLong(arenaBytes);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.close();
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                records.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            records.put((byte) value);
+        }
+
+        private void drain() throws IOException {
+            records.flip();
+            recordBytes += records.remaining();
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+            records.clear();
+        }
+    }
+
+    static long zigzagEncode(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    static int zigzagDecode(long value) {
+        int v = (int) value;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // Struct describing an access from the trace file. Returned by `traceNextAccess`.
+    static class CacheAccess {
+        boolean isStore;
+        int address;
+        int accessSize;
+        byte data[];
+    }
+
+    /**
+     * Opens a trace file, given its name. Must be called before `traceNextAccess`,
+     * which will begin reading from this file.
+     * @param filename: the name of the trace file to open
+     */
+    public static void traceInit(String filename) {
+        traceInit(filename, false);
+    }
+
+    /**
+     * Opens a trace file like `traceInit(filename)`, optionally memory-mapping it instead of
+     * reading it through a stream. Mapping avoids a copy per byte and suits multi-GB traces.
+     * @param filename: the name of the trace file to open
+     * @param memoryMapped: true to parse straight from the mapped file
+     */
+    public static void traceInit(String filename, boolean memoryMapped) {
+        traceInit(filename, memoryMapped, false);
+    }
+
+    /**
+     * Opens a trace file, picking the reader from its first bytes: binary traces written by
+     * `convert`, gzip-compressed text traces, or plain text (streamed or memory-mapped).
+     * Compressed traces, and any trace when decodeThread is set, are decoded on a background
+     * thread that runs ahead of the simulation.
+     * @param filename: the name of the trace file to open
+     * @param memoryMapped: true to parse plain text traces straight from the mapped file
+     * @param decodeThread: true to decode on a background thread even when not compressed
+     */
+    public static void traceInit(String filename, boolean memoryMapped, boolean decodeThread) {
+        try {
+            byte[] head = new byte[BINARY_MAGIC.length];
+            int headLength;
+            try (InputStream in = new FileInputStream(filename)) {
+                headLength = in.readNBytes(head, 0, head.length);
+            }
+
+            traceSource source;
+            if (headLength == head.length && Arrays.equals(head, BINARY_MAGIC)) {
+                source = new binaryTraceReader(FileChannel.open(Paths.get(filename), StandardOpenOption.READ));
+            } else if (headLength >= 2 && (head[0] & 0xFF) == 0x1F && (head[1] & 0xFF) == 0x8B) {
+                // gzip, including multi-member (block-framed) files as written by pigz or bgzip
+                source = new traceReader(new GZIPInputStream(new FileInputStream(filename), 1 << 16));
+                decodeThread = true;
+            } else if (memoryMapped) {
+                source = new mappedTraceReader(filename);
+            } else {
+                source = new traceReader(new FileInputStream(filename));
+            }
+            if (source instanceof traceReader) {
+                ((traceReader) source).skipStoreData = statsOnly();
+            }
+            traceFileReader = decodeThread ? new prefetchingTraceSource(source) : source;
+        } catch (IOException e) {
+            System.err.println("Failed to open trace file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // read a text trace from a stream that is already open, e.g. one held in memory
+    static void traceInit(InputStream in) {
+        traceFileReader = new traceReader(in);
+    }
+
+    // true if the access runs past the end of its block, which a cache line cannot hold
+    static boolean crossesBlock(int address, int size) {
+        return traceBlockSize != 0 && (address & (traceBlockSize - 1)) + (long) size > traceBlockSize;
+    }
+
+    /**
+     * Convert mode: rewrites a text trace (or binary one) in the binary format, which is about
+     * a third of the size and replays without parsing. --compact delta/varint-encodes the records.
+     * @param positional: the input trace and the output file
+     */
+    static void convert(List<String> positional) {
+        if (positional.size() != 2) {
+            fail(USAGE);
+        }
+        if (hasOption("stats-only")) {
+            fail("--stats-only would drop the store data convert has to write");
+        }
+        traceInit(positional.get(0), hasOption("mmap"), hasOption("decode-thread"));
+        try {
+            binaryTraceWriter writer = new binaryTraceWriter(Paths.get(positional.get(1)), hasOption("compact"));
+            accessBatch batch = new accessBatch();
+            while (traceNextBatch(batch) > 0) {
+                for (int i = 0; i < batch.count; i++) {
+                    if (batch.core[i] != 0) {
+                        fail("Binary traces cannot hold core ids, keep multicore traces as text");
+                    }
+                    writer.add(batch, i);
+                }
+            }
+            writer.close();
+        } catch (IOException e) {
+            fail("Failed to write binary trace: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks if we've already read all accesses from the trace file.
+     * @return true if the trace file is complete, false if there's more to read.
+     */
+    public static boolean traceFinished() {
+        try {
+            return traceFileReader.finished();
+        } catch (traceException e) {
+            fail(e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Read the next access in the trace. Errors if `traceFinished() == true`.
+     * @return The access as a `cacheAccess` struct.
+     */
+    public static CacheAccess traceNextAccess() {
+        try {
+            return traceFileReader.next();
+        } catch (traceException e) {
+            fail(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read the next accesses in the trace into a reusable batch, so steady-state reading
+     * allocates nothing.
+     * @param batch: cleared and filled with up to `accessBatch.CAPACITY` accesses
+     * @return The number of accesses read, 0 once the trace is finished.
+     */
+    public static int traceNextBatch(accessBatch batch) {
+        try {
+            return traceFileReader.fill(batch);
+        } catch (traceException e) {
+            fail(e.getMessage());
+            return 0;
+        }
+    }
+    
+    // standard output for the per-access log, flushed on exit
+    static outputWriter out = new outputWriter(new FileOutputStream(FileDescriptor.out));
+
+    /**
+     * Reports a fatal error and exits. Output already produced is flushed first so it
+     * still comes before the error message.
+     * @param message: the error to print on stderr
+     */
+    static void fail(String message) {
+        out.flush();
+        System.err.println(message);
+        System.exit(1);
+    }
+
+    // options given after the positional arguments, as --name or --name=value
+    static Map<String, String> options = new HashMap<>();
+
+    static final String USAGE = "Usage: java CacheSim <tracefile> <cache-size-kB> <num-of-blocks-per-set> <block-size> [options]\n"
+        + "       java CacheSim sweep <tracefile> <sizeKB:ways:blockSize[:policy]>... [options]\n"
+        + "       java CacheSim stackdist <tracefile> <num-of-sets> <block-size> [options]\n"
+        + "       java CacheSim coherence <tracefile> <cores> <cache-size-kB> <num-of-blocks-per-set> <block-size> [options]\n"
+        + "       java CacheSim convert <tracefile> <binary-tracefile> [--compact]\n"
+        + "       java CacheSim server <port | socket-path>\n"
+        + "       java CacheSim client <port | socket-path> <tracefile> <cache-size-kB> <num-of-blocks-per-set> <block-size> [options]\n"
+        + "Binary traces written by convert and gzip-compressed traces are recognised automatically.\n"
+        + "Options:\n"
+        + "  --stats-only       print only totals: no per-access lines, no block data or store data kept\n"
+        + "  --sample-sets=K[:seed]  simulate a random 1 in K of the sets and estimate the miss ratio\n"
+        + "  --smarts=U,W,P     with --timing: measure U accesses after W of detailed warming every P accesses\n"
+        + "  --checkpoint=FILE  save the cache, memory and trace position to FILE at the end\n"
+        + "  --checkpoint-every=N  with --checkpoint: also save every N accesses\n"
+        + "  --restore=FILE     start from a checkpoint and continue the trace where it stopped\n"
+        + "  --fork             with --restore: run the trace from its start on the restored cache\n"
+        + "  --mmap             memory-map the trace file instead of streaming it\n"
+        + "  --decode-thread    decode the trace on a background thread (always on for gzip)\n"
+        + "  --policy=NAME      replacement policy: fifo (default), lru, plru, lfu, nmru, random or srrip;\n"
+        + "                     nmru and random take an optional seed, e.g. random:42\n"
+        + "  --prefetch=NAME    prefetch into the cache: next[:N], stride[:degree] or stream[:buffers[:depth]]\n"
+        + "  --write-through    stores also go straight to memory, lines are never dirty\n"
+        + "  --no-write-allocate  a store miss writes memory without filling the block\n"
+        + "  --write-buffer=N   coalescing write buffer of N blocks in front of memory\n"
+        + "  --victim-cache=N   fully associative victim cache of N blocks behind the cache\n"
+        + "  --classify-misses  label every miss compulsory, capacity or conflict (3C)\n"
+        + "  --timing=H,M,W,N   cycle accounting: hit latency, miss penalty, write-back cost, MSHRs (default 4,100,20,8)\n"
+        + "  --dram=B,R,C,D,P,W  DRAM timing instead of the miss penalty: banks, row bytes, tCAS, tRCD, tRP,\n"
+        + "                     bus bytes per cycle (default 8,2048,14,14,14,8)\n"
+        + "  --metrics=FILE     write per-set/per-way counters, an eviction heatmap and reuse distances\n"
+        + "                     to FILE at the end, as CSV if it ends in .csv and JSON otherwise\n"
+        + "  --metrics-jfr=N    with --metrics: also record every Nth eviction as a JFR event\n"
+        + "  --levels=LIST      back the cache with lower levels, e.g. 256:8:64:lru,4096:16:64 for L2 and L3\n"
+        + "  --inclusion=MODE   levels: nine (default), inclusive or exclusive\n"
+        + "  --latency=LIST     levels: hit latency of each level then memory, in cycles (default 4,12,40,80 and 200)\n"
+        + "  --configs=FILE     sweep: read more configurations from FILE, one per line\n"
+        + "  --log-dir=DIR      sweep: write each configuration's per-access log to DIR\n"
+        + "  --threads=N        sweep: worker threads (default: one per core, 1 streams the trace)\n"
+        + "  --protocol=NAME    coherence: mesi (default) or moesi\n"
+        + "  --llc=CONFIG       coherence: shared last-level cache, sizeKB:ways:blockSize[:policy]\n"
+        + "  --max-ways=N       stackdist: largest associativity to report (default 64)\n"
+        + "  --compact          convert: delta/varint-encode addresses and sizes";
+
+    // options main accepts, anything else is rejected
+    static final Set<String> KNOWN_OPTIONS = new HashSet<>(Arrays.asList("mmap", "decode-thread", "policy", "configs", "log-dir", "threads", "max-ways", "compact", "levels", "inclusion", "latency", "protocol", "llc", "prefetch", "write-through", "no-write-allocate", "write-buffer", "victim-cache", "classify-misses", "timing", "dram", "metrics", "metrics-jfr", "stats-only", "sample-sets", "smarts", "checkpoint", "checkpoint-every", "restore", "fork"));
+
+    // split the command line into positional arguments and --options
+    private static List<String> parseArgs(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+                if (!KNOWN_OPTIONS.contains(name)) {
+                    System.err.println("Unknown option: " + arg);
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+                options.put(name, eq < 0 ? "true" : arg.substring(eq + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        return positional;
+    }
+
+    private static boolean hasOption(String name) {
+        return options.containsKey(name);
+    }
+
+    // no per-access output and no block data: --stats-only, or a sampled run
+    private static boolean statsOnly() {
+        return hasOption("stats-only") || hasOption("sample-sets") || hasOption("smarts");
+    }
+
+    private static String getOption(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    // print a replacement line
+    static void writeReplacement(outputWriter log, int address, boolean dirty) {
+        log.write("replacement 0x");
+        log.writeHex(address);
+        log.write(dirty ? " dirty" : " clean");
+        log.newline();
+    }
+
+    /**
+     * Prints a processed batch the way the single-cache mode always has: any replacement line,
+     * then the access with its result, and for loads the bytes read.
+     * @param batch: the accesses
+     * @param results: what `cache.process` made of them
+     * @param log: where the lines go
+     */
+    static void logResults(accessBatch batch, resultBatch results, outputWriter log) {
+        for (int i = 0; i < batch.count; i++) {
+            if (results.evicted[i]) {
+                writeReplacement(log, results.victimAddress[i], results.victimDirty[i]);
+            }
+            if (batch.isStore[i]) {
+                log.write("store 0x");
+                log.writeHex(batch.address[i]);
+                log.write(results.hit[i] ? " hit" : " miss");
+            } else {
+                log.write("load 0x");
+                log.writeHex(batch.address[i]);
+                log.write(results.hit[i] ? " hit " : " miss ");
+                log.writeHexBytes(results.loadData, results.loadOffset[i], batch.size[i]);
+            }
+            log.newline();
+        }
+    }
+
+    // decodedTrace class - a whole trace decoded once into a compact read-only form that many
+    // simulations can replay at the same time. each access is one long (address in the high
+    // 32 bits, access size above a store bit in the low 32) and store data is appended to one
+    // byte arena in trace order
+    private static class decodedTrace {
+        private long[] records = new long[1 << 16];
+        private int count;
+        private byte[] arena = new byte[1 << 16];
+        private int arenaLength;
+        private boolean storeData = true; // false: the caches track no data, keep no store bytes
+
+        // decode everything left in the currently open trace
+        static decodedTrace readAll(boolean storeData) {
+            decodedTrace trace = new decodedTrace();
+            trace.storeData = storeData;
+            accessBatch batch = new accessBatch();
+            while (traceNextBatch(batch) > 0) {
+                trace.addAll(batch);
+            }
+            return trace;
+        }
+
+        void addAll(accessBatch batch) {
+            if (records.length - count < batch.count) {
+                records = Arrays.copyOf(records, 2 * (count + batch.count));
+            }
+            for (int i = 0; i < batch.count; i++) {
+                int size = batch.size[i];
+                records[count++] = ((long) batch.address[i] << 32) | ((long) size << 1) | (batch.isStore[i] ? 1 : 0);
+                if (batch.isStore[i] && storeData) {
+                    if (arena.length - arenaLength < size) {
+                        if (arenaLength > Integer.MAX_VALUE / 2 - size) {
+                            fail("Trace store data does not fit in memory for a parallel sweep");
+                        }
+                        arena = Arrays.copyOf(arena, 2 * (arenaLength + size));
+                    }
+                    System.arraycopy(batch.data, batch.dataOffset[i], arena, arenaLength, size);
+                    arenaLength += size;
+                }
+            }
+        }
+
+        // run every access through one cache; safe to call from several threads at once
+        void replay(cache myCache, outputWriter log) {
+            // the batch reads store data straight out of the shared arena, it is never written to
+            accessBatch batch = new accessBatch();
+            batch.data = arena;
+            resultBatch results = new resultBatch();
+            int dataOffset = 0;
+            for (int start = 0; start < count; start += accessBatch.CAPACITY) {
+                int n = Integer.min(accessBatch.CAPACITY, count - start);
+                for (int i = 0; i < n; i++) {
+                    long record = records[start + i];
+                    boolean isStore = (record & 1) != 0;
+                    int size = (int) record >>> 1;
+                    batch.isStore[i] = isStore;
+                    batch.address[i] = (int) (record >>> 32);
+                    batch.size[i] = size;
+                    batch.dataOffset[i] = dataOffset;
+                    if (isStore && storeData) {
+                        dataOffset += size;
+                    }
+                }
+                batch.count = n;
+                myCache.process(batch, results);
+                if (log != null) {
+                    logResults(batch, results, log);
+                }
+            }
+        }
+    }
+
+    // sweepConfig class - one cache geometry of a sweep, written sizeKB:ways:blockSize[:policy[:seed]]
+    private static class sweepConfig {
+        int sizeKB, ways, blockSize;
+        String policy;
+
+        static sweepConfig parse(String text) {
+            String[] parts = text.trim().split(":", 4);
+            sweepConfig config = new sweepConfig();
+            try {
+                if (parts.length < 3) {
+                    throw new NumberFormatException();
+                }
+                config.sizeKB = Integer.parseInt(parts[0]);
+                config.ways = Integer.parseInt(parts[1]);
+                config.blockSize = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException e) {
+                fail("Bad sweep configuration \"" + text + "\", expected sizeKB:ways:blockSize[:policy]");
+            }
+            config.policy = parts.length > 3 ? parts[3] : "fifo";
+            return config;
+        }
+
+        cache build(boolean trackData) {
+            return new cache(sizeKB, ways, blockSize, policy, null, trackData);
+        }
+
+        // short name used in the summary and for per-config log files
+        String label() {
+            return sizeKB + "k-" + ways + "w-" + blockSize + "b-" + policy.replace(':', '-');
+        }
+    }
+
+    // read the sweep configurations from the command line and the optional --configs file
+    private static List<sweepConfig> sweepConfigs(List<String> positional) {
+        List<sweepConfig> configs = new ArrayList<>();
+        for (String text : positional) {
+            configs.add(sweepConfig.parse(text));
+        }
+        if (hasOption("configs")) {
+            try {
+                for (String line : Files.readAllLines(Paths.get(getOption("configs", null)))) {
+                    line = line.strip();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        configs.add(sweepConfig.parse(line));
+                    }
+                }
+            } catch (IOException e) {
+                fail("Failed to read sweep configurations: " + e.getMessage());
+            }
+        }
+        if (configs.isEmpty()) {
+            fail("No sweep configurations given");
+        }
+        return configs;
+    }
+
+    // open a per-config log under --log-dir, or return null when per-access logs are off
+    private static outputWriter sweepLog(sweepConfig config) {
+        if (!hasOption("log-dir")) {
+            return null;
+        }
+        try {
+            Path dir = Paths.get(getOption("log-dir", null));
+            Files.createDirectories(dir);
+            return new outputWriter(new FileOutputStream(dir.resolve(config.label() + ".txt").toFile()));
+        } catch (IOException e) {
+            fail("Failed to open sweep log: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // print one summary row per configuration
+    private static void printSweepSummary(List<sweepConfig> configs, cache[] caches) {
+        out.write(String.format("%-24s %10s %10s %10s %10s %10s %9s %10s %10s",
+            "config", "accesses", "loads", "stores", "hits", "misses", "miss-rate", "dirty-evs", "clean-evs"));
+        out.newline();
+        for (int i = 0; i < caches.length; i++) {
+            cache c = caches[i];
+            long loads = c.loadHits + c.loadMisses;
+            long stores = c.storeHits + c.storeMisses;
+            long misses = c.loadMisses + c.storeMisses;
+            long accesses = loads + stores;
+            double missRate = accesses == 0 ? 0 : (double) misses / accesses;
+            out.write(String.format("%-24s %10d %10d %10d %10d %10d %9.4f %10d %10d",
+                configs.get(i).label(), accesses, loads, stores, accesses - misses, misses, missRate,
+                c.dirtyEvictions, c.cleanEvictions));
+            out.newline();
+        }
+    }
+
+    /**
+     * Sweep mode: parses the trace once and feeds every access to one cache per configuration,
+     * then prints a summary table. Per-access logs are written per configuration with --log-dir.
+     * @param positional: the trace file followed by sizeKB:ways:blockSize[:policy] configurations
+     */
+    static void sweep(List<String> positional) {
+        if (positional.isEmpty()) {
+            fail(USAGE);
+        }
+        List<sweepConfig> configs = sweepConfigs(positional.subList(1, positional.size()));
+        boolean statsOnly = hasOption("stats-only");
+        if (statsOnly && hasOption("log-dir")) {
+            fail("--stats-only writes no per-access output, it cannot be combined with --log-dir");
+        }
+
+        cache[] caches = new cache[configs.size()];
+        outputWriter[] logs = new outputWriter[configs.size()];
+        for (int i = 0; i < caches.length; i++) {
+            logs[i] = sweepLog(configs.get(i));
+            caches[i] = configs.get(i).build(!statsOnly);
+            // an access inside the smallest block is inside every larger one too
+            if (traceBlockSize == 0 || caches[i].blockSize < traceBlockSize) {
+                traceBlockSize = caches[i].blockSize;
+            }
+        }
+
+        traceInit(positional.get(0), hasOption("mmap"), hasOption("decode-thread"));
+        int threads = intOption("threads", Runtime.getRuntime().availableProcessors());
+        if (threads <= 1 || caches.length == 1) {
+            // single thread: stream the trace once through every cache
+            accessBatch batch = new accessBatch();
+            resultBatch results = new resultBatch();
+            while (traceNextBatch(batch) > 0) {
+                for (int i = 0; i < caches.length; i++) {
+                    caches[i].process(batch, results);
+                    if (logs[i] != null) {
+                        logResults(batch, results, logs[i]);
+                    }
+                }
+            }
+        } else {
+            // decode once, then give every configuration its own worker. each worker only
+            // touches its own cache and log, so results do not depend on scheduling
+            decodedTrace trace = decodedTrace.readAll(!statsOnly);
+            ForkJoinPool pool = new ForkJoinPool(Integer.min(threads, caches.length));
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < caches.length; i++) {
+                cache myCache = caches[i];
+                outputWriter log = logs[i];
+                tasks.add(pool.submit(() -> trace.replay(myCache, log)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            pool.shutdown();
+        }
+
+        for (outputWriter log : logs) {
+            if (log != null) {
+                log.flush();
+            }
+        }
+        printSweepSummary(configs, caches);
+    }
+
+    // hierarchy class - the cache given on the command line as L1, backed by the --levels chain.
+    // a level's misses fetch whole blocks from the next one and its victims go down to it:
+    //   nine       each level allocates what it fetches and keeps it; dirty victims are written back
+    //   inclusive  as nine, but a block a level evicts is back-invalidated from every level above
+    //   exclusive  a block lives in one level only: a hit below moves the block up, and every
+    //              victim, clean or dirty, moves down one level
+    // every level must use the same block size
+    private static class hierarchy {
+        static final int[] DEFAULT_LATENCY = {4, 12, 40, 80};
+        static final int DEFAULT_MEMORY_LATENCY = 200;
+
+        cache[] levels;
+        int[] latency; // hit latency of each level in cycles, memory last
+        String inclusion;
+
+        static hierarchy build(cache first, String levelSpecs, String inclusion, String latencies) {
+            hierarchy h = new hierarchy();
+            h.inclusion = inclusion;
+            int mode = inclusion.equals("inclusive") ? cache.INCLUSIVE
+                : inclusion.equals("exclusive") ? cache.EXCLUSIVE
+                : inclusion.equals("nine") ? cache.NINE : -1;
+            if (mode < 0) {
+                fail("Unknown inclusion policy: " + inclusion + ", expected inclusive, exclusive or nine");
+            }
+
+            List<cache> chain = new ArrayList<>();
+            chain.add(first);
+            for (String spec : levelSpecs.split(",")) {
+                cache level = sweepConfig.parse(spec).build(true);
+                if (level.blockSize != first.blockSize) {
+                    fail("Every cache level must use the same block size, got " + spec);
+                }
+                chain.add(level);
+            }
+            h.levels = chain.toArray(new cache[0]);
+            for (int i = 0; i < h.levels.length; i++) {
+                h.levels[i].inclusion = mode;
+                h.levels[i].above = Arrays.copyOf(h.levels, i);
+                h.levels[i].next = i + 1 < h.levels.length ? h.levels[i + 1] : null;
+            }
+
+            h.latency = new int[h.levels.length + 1];
+            if (latencies != null) {
+                String[] parts = latencies.split(",");
+                if (parts.length != h.latency.length) {
+                    fail("--latency needs one value per level plus one for memory (" + h.latency.length + ")");
+                }
+                for (int i = 0; i < parts.length; i++) {
+                    h.latency[i] = intArgument(parts[i], "--latency");
+                }
+            } else if (h.levels.length > DEFAULT_LATENCY.length) {
+                fail("--latency is required with more than " + DEFAULT_LATENCY.length + " levels");
+            } else {
+                System.arraycopy(DEFAULT_LATENCY, 0, h.latency, 0, h.levels.length);
+                h.latency[h.levels.length] = DEFAULT_MEMORY_LATENCY;
+            }
+            return h;
+        }
+
+        // accesses that reached a level: every trace access for L1, block fetches below it
+        private long demand(int i) {
+            cache c = levels[i];
+            return i == 0 ? c.loadHits + c.loadMisses + c.storeHits + c.storeMisses : c.loadHits + c.loadMisses;
+        }
+
+        private long demandMisses(int i) {
+            cache c = levels[i];
+            return i == 0 ? c.loadMisses + c.storeMisses : c.loadMisses;
+        }
+
+        // per level counters, then AMAT: every access pays L1's latency, each level's misses pay the next one's
+        void printSummary() {
+            out.write(String.format("%-6s %-24s %10s %10s %9s %10s %10s %10s %10s %8s",
+                "level", "config", "accesses", "misses", "miss-rate", "writes-in", "dirty-evs", "clean-evs",
+                "back-invs", "latency"));
+            out.newline();
+            for (int i = 0; i < levels.length; i++) {
+                cache c = levels[i];
+                long accesses = demand(i);
+                long misses = demandMisses(i);
+                double missRate = accesses == 0 ? 0 : (double) misses / accesses;
+                String config = (c.cacheSize / 1024) + "k-" + c.numOfBlockPerSet + "w-" + c.blockSize + "b";
+                out.write(String.format("%-6s %-24s %10d %10d %9.4f %10d %10d %10d %10d %8d",
+                    "L" + (i + 1), config, accesses, misses, missRate, i == 0 ? 0 : c.storeHits + c.storeMisses,
+                    c.dirtyEvictions, c.cleanEvictions, c.backInvalidations, latency[i]));
+                out.newline();
+            }
+            cache last = levels[levels.length - 1];
+            out.write(String.format("%-6s %-24s %10d %10s %9s %10d %10s %10s %10s %8d",
+                "memory", "", last.memoryReads, "", "", last.memoryWrites, "", "", "", latency[levels.length]));
+            out.newline();
+
+            long total = demand(0);
+            double cycles = 0;
+            for (int i = 0; i < levels.length; i++) {
+                cycles += (double) latency[i] * demand(i);
+            }
+            cycles += (double) latency[levels.length] * demandMisses(levels.length - 1);
+            out.write(String.format("AMAT: %.3f cycles (%s)", total == 0 ? 0 : cycles / total, inclusion));
+            out.newline();
+        }
+    }
+
+    // writeMaskMap class - per block, the bytes other cores have written since this core lost its
+    // copy to one of their writes. a zero mask means nothing is pending for the block
+    private static class writeMaskMap {
+        private intIntMap slots = new intIntMap(); // block -> index into masks
+        private long[] masks = new long[16];
+
+        // add written bytes to a block's mask, starting one if needed
+        void or(int block, long mask) {
+            int slot = slots.get(block);
+            if (slot == intIntMap.MISSING) {
+                slot = slots.size();
+                slots.put(block, slot);
+                if (slot == masks.length) {
+                    masks = Arrays.copyOf(masks, 2 * slot);
+                }
+            }
+            masks[slot] |= mask;
+        }
+
+        // add written bytes only if the block already has a pending mask
+        void orIfPending(int block, long mask) {
+            int slot = slots.get(block);
+            if (slot != intIntMap.MISSING && masks[slot] != 0) {
+                masks[slot] |= mask;
+            }
+        }
+
+        // the pending mask of a block, which is cleared
+        long take(int block) {
+            int slot = slots.get(block);
+            if (slot == intIntMap.MISSING) {
+                return 0;
+            }
+            long mask = masks[slot];
+            masks[slot] = 0;
+            return mask;
+        }
+    }
+
+    // coherenceBus class - private per-core caches kept coherent by snooping a shared bus, on top
+    // of an optional shared last-level cache (otherwise straight on one shared RAM). the MESI
+    // states are the existing line bits: invalid = !filled, modified = modified && !shared,
+    // exclusive = !modified && !shared, shared = !modified && shared; MOESI adds
+    // owned = modified && shared, a dirty line that supplies the block to other readers
+    private static class coherenceBus {
+        cache[] cores;
+        cache llc; // null when the cores sit on RAM
+        boolean moesi;
+        private int blockSize, granuleShift;
+        private int[] holderLine; // per core, the line found by the current snoop or -1
+        private writeMaskMap[] lostWrites;
+
+        long busReads, busReadExclusives, upgrades, invalidations, interventions, interventionWriteBacks;
+        long[] coherenceMisses, falseSharingMisses;
+
+        public coherenceBus(int numCores, sweepConfig config, cache llc, boolean moesi) {
+            this.llc = llc;
+            this.moesi = moesi;
+            this.blockSize = config.blockSize;
+            // sharing is tracked per byte for blocks up to 64 bytes, in 64 equal granules above that
+            this.granuleShift = Integer.max(0, Integer.numberOfTrailingZeros(blockSize) - 6);
+
+            sparseMemory RAM = new sparseMemory(blockSize);
+            cores = new cache[numCores];
+            lostWrites = new writeMaskMap[numCores];
+            for (int i = 0; i < numCores; i++) {
+                cores[i] = config.build(true);
+                cores[i].RAM = RAM;
+                cores[i].next = llc;
+                lostWrites[i] = new writeMaskMap();
+            }
+            holderLine = new int[numCores];
+            coherenceMisses = new long[numCores];
+            falseSharingMisses = new long[numCores];
+        }
+
+        /**
+         * Runs a batch of accesses, each on the core the trace gave it.
+         * @param batch: the accesses, in global trace order
+         * @param results: receives hit/miss and the loaded bytes of each access
+         */
+        public void process(accessBatch batch, resultBatch results) {
+            results.clear();
+            for (int i = 0; i < batch.count; i++) {
+                int core = batch.core[i];
+                if (core >= cores.length) {
+                    fail("Core id " + core + " out of range for " + cores.length + " cores");
+                }
+                int size = batch.size[i];
+                if (batch.isStore[i]) {
+                    results.hit[i] = access(core, true, batch.address[i], size, batch.data, batch.dataOffset[i]);
+                } else {
+                    int offset = results.reserveLoad(size);
+                    results.loadOffset[i] = offset;
+                    results.hit[i] = access(core, false, batch.address[i], size, results.loadData, offset);
+                }
+            }
         }
 
-        // check if an operation with this tag will cause an eviction
-        public boolean willCauseEviction(int tag) {
-            // Check if the tag is already in the cache (hit)
-            for (cacheBlock block : blocks) {
-                if (block.filledBlock && block.tag == tag) {
-                    return false; // hit, no eviction
+        // one access on one core: stores copy from buf, loads into it
+        private boolean access(int id, boolean store, int address, int size, byte[] buf, int bufOffset) {
+            cache c = cores[id];
+            int setIndex = c.getSetIndex(address);
+            int offset = c.getOffset(address);
+            int block = Integer.divideUnsigned(address, blockSize);
+            long mask = byteMask(offset, size);
+
+            c.sets[setIndex].access(c.getTag(address), c.probe);
+            int line = c.probe.line;
+            boolean hit = c.probe.hit;
+            if (!hit) {
+                // a miss on a block another core's write took away is a coherence miss, and false
+                // sharing when none of the bytes written since then are the ones wanted now
+                long written = lostWrites[id].take(block);
+                if (written != 0) {
+                    coherenceMisses[id]++;
+                    if ((written & mask) == 0) {
+                        falseSharingMisses[id]++;
+                    }
                 }
+                c.miss(address, setIndex, false); // evicts and writes back the victim, the bus fills the line
+                snoop(id, address, setIndex, block, store, mask, line);
+            } else if (store && c.sharedBlock[line]) {
+                // shared or owned: other copies must go before the write
+                upgrades++;
+                snoop(id, address, setIndex, block, true, mask, -1);
             }
-            
-            // miss - check if set is full
-            return blocks.size() >= maxBlocks;
-        }
-        
-        // get the block that would be evicted (first/oldest in FIFO)
-        public cacheBlock getBlockToEvict() {
-            if (blocks.isEmpty()) {
-                return null;
+
+            int at = line * blockSize + offset;
+            if (store) {
+                System.arraycopy(buf, bufOffset, c.data, at, size);
+                c.modifiedBlock[line] = true;
+                c.sharedBlock[line] = false;
+                for (int i = 0; i < cores.length; i++) {
+                    if (i != id) {
+                        lostWrites[i].orIfPending(block, mask);
+                    }
+                }
+                if (hit) {
+                    c.storeHits++;
+                } else {
+                    c.storeMisses++;
+                }
+            } else {
+                System.arraycopy(c.data, at, buf, bufOffset, size);
+                if (hit) {
+                    c.loadHits++;
+                } else {
+                    c.loadMisses++;
+                }
             }
-            return blocks.get(0); // first block (oldest in FIFO)
+            return hit;
         }
 
-        public String store(int tag, int offset, int size, byte[] data, int fullAddress) {
-            // check for a hit
-            for (cacheBlock block : blocks) {
-                if (block.filledBlock && block.tag == tag) {
-                    // update data
-                    for (int i = 0; i < size; i++) {
-                        block.data[offset + i] = data[i];
+        // broadcast a read (exclusive when the core is about to write) and let the other caches
+        // react. fillLine is the requester's line to fill, or -1 for an upgrade that needs no data
+        private void snoop(int id, int address, int setIndex, int block, boolean exclusive, long mask, int fillLine) {
+            cache c = cores[id];
+            int tag = c.getTag(address);
+            int owner = -1;
+            boolean othersHave = false;
+            for (int i = 0; i < cores.length; i++) {
+                holderLine[i] = i == id ? -1 : cores[i].sets[setIndex].findBlockByTag(tag);
+                if (holderLine[i] >= 0) {
+                    othersHave = true;
+                    if (cores[i].modifiedBlock[holderLine[i]]) {
+                        owner = i;
                     }
-                    block.modifiedBlock = true;
-                    
-                    return "hit";
                 }
             }
 
-            // miss — allocate a new block (write-allocate)
-            cacheBlock newBlock = new cacheBlock(blockSize);
-            newBlock.filledBlock = true;
-            newBlock.modifiedBlock = true;
-            newBlock.tag = tag;
+            if (fillLine >= 0) {
+                if (exclusive) {
+                    busReadExclusives++;
+                } else {
+                    busReads++;
+                }
+                int lineStart = fillLine * blockSize;
+                if (owner >= 0) {
+                    // the dirty copy is the only current one, its cache supplies the block
+                    interventions++;
+                    System.arraycopy(cores[owner].data, holderLine[owner] * blockSize, c.data, lineStart, blockSize);
+                } else {
+                    c.fetchFromBelow(address, c.data, lineStart);
+                }
+            }
 
-            // load the entire block from RAM first
-            int ramBlockIndex = fullAddress / blockSize;
-            if (ramBlockIndex < ram.size()) {
-                System.arraycopy(ram.get(ramBlockIndex).data, 0, newBlock.data, 0, blockSize);
+            for (int i = 0; i < cores.length; i++) {
+                int line = holderLine[i];
+                if (line < 0) {
+                    continue;
+                }
+                cache other = cores[i];
+                if (exclusive) {
+                    other.sets[setIndex].invalidate(line);
+                    invalidations++;
+                    lostWrites[i].or(block, mask);
+                } else {
+                    if (i == owner && !moesi) {
+                        // MESI: modified -> shared writes the block back on the way
+                        other.writeBelow(address, other.data, line * blockSize, true);
+                        other.modifiedBlock[line] = false;
+                        interventionWriteBacks++;
+                    }
+                    other.sharedBlock[line] = true; // MOESI owner: modified -> owned
+                }
             }
+            if (fillLine >= 0 && !exclusive) {
+                c.sharedBlock[fillLine] = othersHave;
+            }
+        }
+
+        // bit per byte (or granule) of the block covered by an access
+        private long byteMask(int offset, int size) {
+            int first = offset >>> granuleShift;
+            int count = ((offset + size - 1) >>> granuleShift) - first + 1;
+            return (count == 64 ? -1L : (1L << count) - 1) << first;
+        }
 
-            // then write the new data
-            for (int i = 0; i < size; i++) {
-                newBlock.data[offset + i] = data[i];
+        void printSummary() {
+            out.write(String.format("%-6s %10s %10s %10s %10s %9s %10s %10s %10s",
+                "core", "loads", "stores", "hits", "misses", "miss-rate", "coherence", "false-shr", "dirty-evs"));
+            out.newline();
+            for (int i = 0; i < cores.length; i++) {
+                cache c = cores[i];
+                long loads = c.loadHits + c.loadMisses;
+                long stores = c.storeHits + c.storeMisses;
+                long misses = c.loadMisses + c.storeMisses;
+                double missRate = loads + stores == 0 ? 0 : (double) misses / (loads + stores);
+                out.write(String.format("%-6d %10d %10d %10d %10d %9.4f %10d %10d %10d",
+                    i, loads, stores, loads + stores - misses, misses, missRate,
+                    coherenceMisses[i], falseSharingMisses[i], c.dirtyEvictions));
+                out.newline();
             }
+            out.write(String.format("bus (%s): %d reads, %d read-exclusives, %d upgrades, %d invalidations, %d interventions (%d written back)",
+                moesi ? "MOESI" : "MESI", busReads, busReadExclusives, upgrades, invalidations, interventions, interventionWriteBacks));
+            out.newline();
+            if (llc != null) {
+                long accesses = llc.loadHits + llc.loadMisses;
+                out.write(String.format("LLC: %d fetches, %d misses, %d write-backs received, %d dirty evictions",
+                    accesses, llc.loadMisses, llc.storeHits + llc.storeMisses, llc.dirtyEvictions));
+                out.newline();
+            }
+        }
+    }
 
-            // evict if full using FIFO - remove the oldest block (first in the list)
-            if (blocks.size() >= maxBlocks) {
-                // the first block in the list is the oldest (FIFO)
-                blocks.remove(0);
+    /**
+     * Coherence mode: one private cache per core, kept coherent by MESI (or MOESI) snooping,
+     * over an optional shared LLC. Trace lines start with the id of the issuing core.
+     * @param positional: the trace file, the number of cores and the private cache geometry
+     */
+    static void coherence(List<String> positional) {
+        if (positional.size() != 5) {
+            fail(USAGE);
+        }
+        if (hasOption("stats-only")) {
+            fail("--stats-only is not supported by coherence, which already prints only its summary table");
+        }
+        int numCores = Integer.parseInt(positional.get(1));
+        sweepConfig config = sweepConfig.parse(positional.get(2) + ":" + positional.get(3) + ":" + positional.get(4)
+            + ":" + getOption("policy", "fifo"));
+        String protocol = getOption("protocol", "mesi");
+        if (!protocol.equals("mesi") && !protocol.equals("moesi")) {
+            fail("Unknown coherence protocol: " + protocol + ", expected mesi or moesi");
+        }
+        cache llc = null;
+        if (hasOption("llc")) {
+            llc = sweepConfig.parse(getOption("llc", null)).build(true);
+            if (llc.blockSize != config.blockSize) {
+                fail("The LLC must use the same block size as the private caches");
             }
+        }
+        coherenceBus bus = new coherenceBus(numCores, config, llc, protocol.equals("moesi"));
 
-            // add the new block to the end (newest)
-            blocks.add(newBlock);
-            return "miss";
+        traceBlockSize = config.blockSize;
+        traceInit(positional.get(0), hasOption("mmap"), hasOption("decode-thread"));
+        accessBatch batch = new accessBatch();
+        resultBatch results = new resultBatch();
+        while (traceNextBatch(batch) > 0) {
+            bus.process(batch, results);
         }
+        bus.printSummary();
+    }
 
-        public String load(int tag, int offset, int size, int fullAddress) {
-            // check for a hit
-            for (cacheBlock block : blocks) {
-                if (block.filledBlock && block.tag == tag) {
-                    return "hit";
-                }
-            }
+    // simulationServer class - keeps named caches in memory and simulates the accesses clients
+    // stream to it over a local socket, so a tracing agent pays JVM startup and warm-up once.
+    // every connection is a session on a thread of its own; sessions share the caches by name
+    // and hold a cache's lock for each request. the protocol is binary and big-endian:
+    //   request   op (byte), cache name (UTF), then
+    //     CREATE  sizeKB, ways, blockSize (ints), policy (UTF), track data (byte)
+    //     RESET   nothing; the cache starts over empty with the same arguments
+    //     QUERY   nothing
+    //     ACCESS  count (int, at most 4096), then per access: store (byte), address (int),
+    //             size (int) and for a store its data
+    //     DROP    nothing; the cache is forgotten
+    //   reply     status (byte, 0 ok or 1 error followed by a UTF message), then
+    //     QUERY   load hits, load misses, store hits, store misses, dirty and clean evictions (longs)
+    //     ACCESS  per access a flags byte (1 hit, 2 evicted, 4 victim dirty), the victim's
+    //             address (int) if evicted, and for a load its bytes if the cache tracks data
+    // a session ends when the client closes the connection or breaks the protocol
+    private static class simulationServer {
+        static final int CREATE = 1, RESET = 2, QUERY = 3, ACCESS = 4, DROP = 5;
+        static final int OK = 0, ERROR = 1;
 
-            // miss — fetch block from memory
-            cacheBlock newBlock = new cacheBlock(blockSize);
-            newBlock.filledBlock = true;
-            newBlock.modifiedBlock = false;
-            newBlock.tag = tag;
+        // a cache and the arguments it was created with
+        private static class entry {
+            cache c;
+            int sizeKB, ways, blockSize;
+            String policy;
+            boolean trackData;
 
-            // load from RAM
-            int ramBlockIndex = fullAddress / blockSize;
-            if (ramBlockIndex < ram.size()) {
-                System.arraycopy(ram.get(ramBlockIndex).data, 0, newBlock.data, 0, blockSize);
+            cache build() {
+                return new cache(sizeKB, ways, blockSize, policy, null, trackData);
             }
-               
-            // evict if full using FIFO - remove the oldest block (first in the list)
-            if (blocks.size() >= maxBlocks) {
-                // the first block in the list is the oldest (FIFO)
-                blocks.remove(0);
+        }
+
+        // a request the server turns down; the session goes on
+        private static class requestException extends Exception {
+            private static final long serialVersionUID = 1L;
+
+            requestException(String message) {
+                super(message);
             }
+        }
 
-            // add the new block to the end (newest)
-            blocks.add(newBlock);
-            return "miss";
+        private Map<String, entry> caches = new ConcurrentHashMap<>();
+        // one platform thread per session; the build targets Java 17, which has no virtual threads
+        private ExecutorService sessions = Executors.newCachedThreadPool();
+
+        void serve(ServerSocketChannel listener) throws IOException {
+            while (true) {
+                SocketChannel channel = listener.accept();
+                sessions.submit(() -> session(channel));
+            }
         }
 
-        public cacheBlock findBlockByTag(int tag) {
-            for (cacheBlock block : blocks) {
-                if (block.tag == tag && block.filledBlock) {
-                    return block;
+        private void session(SocketChannel channel) {
+            try (channel) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+                DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                accessBatch batch = new accessBatch();
+                resultBatch results = new resultBatch();
+                int op;
+                while ((op = in.read()) >= 0) {
+                    String name = in.readUTF();
+                    try {
+                        handle(op, name, in, reply, batch, results);
+                    } catch (requestException e) {
+                        reply.writeByte(ERROR);
+                        reply.writeUTF(e.getMessage());
+                    }
+                    reply.flush();
                 }
+            } catch (IOException e) {
+                // the client went away or broke the protocol; only its session ends
             }
-            return null;
         }
-    }
-
-    // cache class
-    private static class cache {
-        private int cacheSize, numOfBlockPerSet, blockSize;
-        private int numSets;
 
-        private List<MemoryBlock> RAM = new ArrayList<>();
-        private List<cacheSet> sets = new ArrayList<>();
-        private byte[] lastLoadedData;
+        // read one request's arguments, then carry it out. every argument is read before
+        // anything can be refused, so the stream stays in step after an error
+        private void handle(int op, String name, DataInputStream in, DataOutputStream reply,
+            accessBatch batch, resultBatch results) throws IOException, requestException {
+            switch (op) {
+                case CREATE: {
+                    entry e = new entry();
+                    e.sizeKB = in.readInt();
+                    e.ways = in.readInt();
+                    e.blockSize = in.readInt();
+                    e.policy = in.readUTF();
+                    e.trackData = in.readByte() != 0;
+                    String problem = checkConfig(e.sizeKB, e.ways, e.blockSize, e.policy);
+                    if (problem != null) {
+                        throw new requestException(problem);
+                    }
+                    e.c = e.build();
+                    if (caches.putIfAbsent(name, e) != null) {
+                        throw new requestException("Cache " + name + " already exists");
+                    }
+                    reply.writeByte(OK);
+                    break;
+                }
+                case RESET: {
+                    entry e = lookup(name);
+                    synchronized (e) {
+                        e.c = e.build();
+                    }
+                    reply.writeByte(OK);
+                    break;
+                }
+                case QUERY: {
+                    entry e = lookup(name);
+                    long[] t;
+                    synchronized (e) {
+                        t = totals(e.c);
+                    }
+                    reply.writeByte(OK);
+                    for (long value : t) {
+                        reply.writeLong(value);
+                    }
+                    break;
+                }
+                case ACCESS:
+                    access(name, in, reply, batch, results);
+                    break;
+                case DROP:
+                    if (caches.remove(name) == null) {
+                        throw new requestException("No cache named " + name);
+                    }
+                    reply.writeByte(OK);
+                    break;
+                default:
+                    throw new IOException("unknown request " + op);
+            }
+        }
 
-        public cache(int sizeKB, int blocksPerSet, int blockSize) {
-            // converts the input values into useful variables
-            this.cacheSize = sizeKB * 1024;
-            this.numOfBlockPerSet = blocksPerSet;
-            this.blockSize = blockSize;
+        private void access(String name, DataInputStream in, DataOutputStream reply,
+            accessBatch batch, resultBatch results) throws IOException, requestException {
+            int count = in.readInt();
+            if (count < 0 || count > accessBatch.CAPACITY) {
+                throw new IOException("batch of " + count + " accesses");
+            }
+            batch.clear();
+            for (int i = 0; i < count; i++) {
+                boolean store = in.readByte() != 0;
+                int address = in.readInt();
+                int size = in.readInt();
+                if (size < 0 || size > 1 << 16) {
+                    throw new IOException("access of " + size + " bytes");
+                }
+                int offset = 0;
+                if (store) {
+                    offset = batch.reserveData(size);
+                    in.readFully(batch.data, offset, size);
+                }
+                batch.add(store, address, size, offset);
+            }
 
-            // calculate number of sets
-            this.numSets = cacheSize / (blockSize * numOfBlockPerSet);
+            entry e = lookup(name);
+            for (int i = 0; i < count; i++) {
+                if ((batch.address[i] & (e.blockSize - 1)) + (long) batch.size[i] > e.blockSize) {
+                    throw new requestException(String.format("Access %d (0x%x, %d bytes) crosses a %d-byte block boundary",
+                        i, batch.address[i], batch.size[i], e.blockSize));
+                }
+            }
+            synchronized (e) {
+                try {
+                    e.c.process(batch, results);
+                } catch (RuntimeException x) {
+                    // nothing a checked request holds should get here, but it must not end the session
+                    throw new requestException("Access failed: " + x);
+                }
+            }
+            reply.writeByte(OK);
+            for (int i = 0; i < count; i++) {
+                reply.writeByte((results.hit[i] ? 1 : 0) | (results.evicted[i] ? 2 : 0) | (results.victimDirty[i] ? 4 : 0));
+                if (results.evicted[i]) {
+                    reply.writeInt(results.victimAddress[i]);
+                }
+                if (!batch.isStore[i] && e.trackData) {
+                    reply.write(results.loadData, results.loadOffset[i], batch.size[i]);
+                }
+            }
+        }
 
-            // initialize RAM with zeros - 16MB memory
-            for (int i = 0; i < (16 * 1024 * 1024) / blockSize; i++) {
-                RAM.add(new MemoryBlock(blockSize));
+        private entry lookup(String name) throws requestException {
+            entry e = caches.get(name);
+            if (e == null) {
+                throw new requestException("No cache named " + name);
             }
+            return e;
+        }
 
-            // initialize cache sets
-            for (int i = 0; i < numSets; i++) {
-                sets.add(new cacheSet(i, numSets, blockSize, numOfBlockPerSet, RAM));
+        // why a cache cannot be built from these arguments, or null if it can. the command line
+        // leaves these checks to fail(), which would take the whole server down
+        static String checkConfig(int sizeKB, int ways, int blockSize, String policy) {
+            if (sizeKB < 1 || sizeKB > 1 << 20 || ways < 1 || blockSize < 1 || Integer.bitCount(blockSize) != 1) {
+                return "Bad cache geometry: " + sizeKB + " kB, " + ways + " ways, " + blockSize + "-byte blocks";
+            }
+            long bytes = sizeKB * 1024L;
+            long sets = bytes / ((long) blockSize * ways);
+            if (sets < 1 || Long.bitCount(sets) != 1 || sets * blockSize * ways != bytes) {
+                return "Cache size, ways and block size must give a power-of-two number of sets";
+            }
+            String name = policy.split(":")[0];
+            if (name.equals("plru") && (Integer.bitCount(ways) != 1 || ways > 64) || name.equals("srrip") && ways > 32) {
+                return name + " does not support " + ways + " ways";
             }
+            try {
+                if (createPolicy(policy, 1, ways) == null) {
+                    return "Unknown replacement policy: " + policy;
+                }
+            } catch (NumberFormatException e) {
+                return "Bad seed in policy " + policy;
+            }
+            return null;
         }
+    }
 
-        // get set index from address
-        private int getSetIndex(int address) {
-            return (address / blockSize) & (numSets - 1);
+    // a port number is TCP on the loopback interface, anything else a Unix-domain socket path
+    private static SocketAddress socketAddress(String where) {
+        if (!where.isEmpty() && where.chars().allMatch(Character::isDigit)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(where));
         }
+        return UnixDomainSocketAddress.of(where);
+    }
 
-        // get tag from address
-        private int getTag(int address) {
-            return address / (blockSize * numSets);
+    /**
+     * Server mode: serves simulationServer's protocol until killed.
+     * @param positional: the port or socket path to listen on
+     */
+    static void server(List<String> positional) {
+        if (positional.size() != 1) {
+            fail(USAGE);
+        }
+        SocketAddress address = socketAddress(positional.get(0));
+        try {
+            ServerSocketChannel listener;
+            if (address instanceof UnixDomainSocketAddress) {
+                Path path = ((UnixDomainSocketAddress) address).getPath();
+                // a socket left behind by a server that was killed
+                if (Files.exists(path) && !Files.isRegularFile(path) && !Files.isDirectory(path)) {
+                    Files.delete(path);
+                }
+                listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> path.toFile().delete()));
+            } else {
+                listener = ServerSocketChannel.open();
+            }
+            listener.bind(address);
+            out.write("listening on " + positional.get(0));
+            out.newline();
+            out.flush();
+            new simulationServer().serve(listener);
+        } catch (IOException e) {
+            fail("Server failed: " + e.getMessage());
         }
+    }
 
-        // get offset within block
-        private int getOffset(int address) {
-            return address & (blockSize - 1);
+    // the options client passes on or uses itself; everything else would be silently ignored
+    static final Set<String> CLIENT_OPTIONS = new HashSet<>(Arrays.asList("policy", "stats-only", "mmap", "decode-thread"));
+
+    /**
+     * Client mode: runs a trace through a cache on a server and prints the result exactly as a
+     * local run of the same arguments would, so the two can be compared. With --stats-only the
+     * server's totals are printed instead. The cache is dropped again at the end. Port 0 runs a
+     * private server inside the client, so one command exercises the whole protocol.
+     * @param positional: server address, trace file, cache size in kB, ways, block size
+     */
+    static void client(List<String> positional) {
+        if (positional.size() != 5) {
+            fail(USAGE);
+        }
+        for (String option : options.keySet()) {
+            if (!CLIENT_OPTIONS.contains(option)) {
+                fail("--" + option + " is not supported by client; the server simulates a single cache, so only --policy, --stats-only, --mmap and --decode-thread apply");
+            }
         }
+        boolean statsOnly = hasOption("stats-only");
+        int blockSize = Integer.parseInt(positional.get(4));
+        traceBlockSize = blockSize;
+        traceInit(positional.get(1), hasOption("mmap"), hasOption("decode-thread"));
+        String name = "client-" + ProcessHandle.current().pid();
+        try (SocketChannel channel = SocketChannel.open(clientAddress(positional.get(0)))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
 
-        public String load(int address, int size) {
-            int setIndex = getSetIndex(address);
-            int tag = getTag(address);
-            int offset = getOffset(address);
-            
-            // get the set for this address
-            cacheSet set = sets.get(setIndex);
-            
-            // check for potential eviction before accessing
-            boolean willEvict = set.willCauseEviction(tag);
-            if (willEvict) {
-                // handle eviction
-                cacheBlock evictedBlock = set.getBlockToEvict();
-                int evictedBlockTag = evictedBlock.tag;
-                int evictedAddress = (evictedBlockTag * numSets + setIndex) * blockSize;
-                
-                // print replacement message
-                if (evictedBlock.modifiedBlock) {
-                    System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " dirty");
-                    
-                    // write back to memory for dirty block
-                    MemoryBlock ramBlock = RAM.get(evictedAddress / blockSize);
-                    for (int i = 0; i < blockSize; i++) {
-                        ramBlock.data[i] = evictedBlock.data[i];
+            request.writeByte(simulationServer.CREATE);
+            request.writeUTF(name);
+            request.writeInt(Integer.parseInt(positional.get(2)));
+            request.writeInt(Integer.parseInt(positional.get(3)));
+            request.writeInt(blockSize);
+            request.writeUTF(getOption("policy", "fifo"));
+            request.writeByte(statsOnly ? 0 : 1);
+            request.flush();
+            expectOk(in);
+
+            accessBatch batch = new accessBatch();
+            resultBatch results = new resultBatch();
+            while (traceNextBatch(batch) > 0) {
+                request.writeByte(simulationServer.ACCESS);
+                request.writeUTF(name);
+                request.writeInt(batch.count);
+                for (int i = 0; i < batch.count; i++) {
+                    request.writeByte(batch.isStore[i] ? 1 : 0);
+                    request.writeInt(batch.address[i]);
+                    request.writeInt(batch.size[i]);
+                    if (batch.isStore[i]) {
+                        request.write(batch.data, batch.dataOffset[i], batch.size[i]);
+                    }
+                }
+                request.flush();
+                expectOk(in);
+                results.clear();
+                for (int i = 0; i < batch.count; i++) {
+                    int flags = in.readByte();
+                    results.hit[i] = (flags & 1) != 0;
+                    results.evicted[i] = (flags & 2) != 0;
+                    results.victimDirty[i] = (flags & 4) != 0;
+                    if (results.evicted[i]) {
+                        results.victimAddress[i] = in.readInt();
+                    }
+                    if (!batch.isStore[i] && !statsOnly) {
+                        results.loadOffset[i] = results.reserveLoad(batch.size[i]);
+                        in.readFully(results.loadData, results.loadOffset[i], batch.size[i]);
                     }
-                } else {
-                    System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " clean");
+                }
+                if (!statsOnly) {
+                    logResults(batch, results, out);
                 }
             }
-            
-            // access the cache
-            String result = set.load(tag, offset, size, address);
-            
-            // get the data for this load
-            cacheBlock block = set.findBlockByTag(tag);
-            if (block != null) {
-                lastLoadedData = new byte[size];
-                for (int i = 0; i < size; i++) {
-                    lastLoadedData[i] = block.data[offset + i];
+
+            if (statsOnly) {
+                request.writeByte(simulationServer.QUERY);
+                request.writeUTF(name);
+                request.flush();
+                expectOk(in);
+                long[] t = new long[6];
+                for (int i = 0; i < t.length; i++) {
+                    t[i] = in.readLong();
                 }
-            } else {
-                lastLoadedData = new byte[size]; 
+                printTotals(t);
             }
-            
-            return result;
+            request.writeByte(simulationServer.DROP);
+            request.writeUTF(name);
+            request.flush();
+            expectOk(in);
+        } catch (IOException e) {
+            fail("Connection to server failed: " + e.getMessage());
         }
+    }
 
-        public String store(int address, int size, byte[] data) {
-            int setIndex = getSetIndex(address);
-            int tag = getTag(address);
-            int offset = getOffset(address);
-            
-            // get the set for this address
-            cacheSet set = sets.get(setIndex);
-            
-            // check for potential eviction before accessing
-            boolean willEvict = set.willCauseEviction(tag);
-            if (willEvict) {
-                // handle eviction
-                cacheBlock evictedBlock = set.getBlockToEvict();
-                int evictedBlockTag = evictedBlock.tag;
-                int evictedAddress = (evictedBlockTag * numSets + setIndex) * blockSize;
-                
-                // print replacement message
-                if (evictedBlock.modifiedBlock) {
-                    System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " dirty");
-                    
-                    // write back to memory for dirty block
-                    MemoryBlock ramBlock = RAM.get(evictedAddress / blockSize);
-                    for (int i = 0; i < blockSize; i++) {
-                        ramBlock.data[i] = evictedBlock.data[i];
-                    }
-                } else {
-                    System.out.println("replacement 0x" + Integer.toHexString(evictedAddress) + " clean");
-                }
+    // where client connects. port 0 starts a server of the client's own on a free loopback port;
+    // its accept thread is a daemon and ends with the run
+    private static SocketAddress clientAddress(String where) throws IOException {
+        SocketAddress address = socketAddress(where);
+        if (!(address instanceof InetSocketAddress) || ((InetSocketAddress) address).getPort() != 0) {
+            return address;
+        }
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(address);
+        Thread accept = new Thread(() -> {
+            try {
+                new simulationServer().serve(listener);
+            } catch (IOException e) {
+                fail("Server failed: " + e.getMessage());
             }
-            
-            // access the cache
-            return set.store(tag, offset, size, data, address);
+        });
+        accept.setDaemon(true);
+        accept.start();
+        return listener.getLocalAddress();
+    }
+
+    // read a reply's status, failing with the server's message on an error
+    private static void expectOk(DataInputStream in) throws IOException {
+        if (in.readByte() != simulationServer.OK) {
+            fail("Server: " + in.readUTF());
         }
+    }
 
-        public byte[] getLoadedData() {
-            return lastLoadedData;
+    static final double CONFIDENCE_Z = 1.96; // two-sided 95% under the normal approximation
+
+    // square root by Newton's method, for the confidence intervals. starting at or above the
+    // root the iterates only decrease, so stop when they no longer do
+    static double squareRoot(double x) {
+        if (x <= 0) {
+            return 0;
+        }
+        double r = x > 1 ? x : 1;
+        double next = (r + x / r) / 2;
+        while (next < r) {
+            r = next;
+            next = (r + x / r) / 2;
         }
+        return r;
     }
 
-    // Struct describing an access from the trace file. Returned by `traceNextAccess`.
-    private static class CacheAccess {
-        boolean isStore;
-        int address;
-        int accessSize;
-        byte data[];
+    // one line of a sampled estimate; halfWidth < 0 when there is too little data for an interval
+    private static void printEstimate(String name, double estimate, double halfWidth) {
+        if (halfWidth < 0) {
+            out.write(String.format("%s estimate: %.4f (too few samples for a confidence interval)", name, estimate));
+        } else {
+            out.write(String.format("%s estimate: %.4f +/- %.4f (95%% CI %.4f to %.4f)",
+                name, estimate, halfWidth, estimate - halfWidth, estimate + halfWidth));
+        }
+        out.newline();
+    }
+
+    // a whole number given on the command line; a typo is reported like any other bad argument
+    private static int intArgument(String text, String option) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            fail(option + " needs a whole number, got " + text);
+            return 0;
+        }
+    }
+
+    private static long longArgument(String text, String option) {
+        try {
+            return Long.parseLong(text.trim());
+        } catch (NumberFormatException e) {
+            fail(option + " needs a whole number, got " + text);
+            return 0;
+        }
+    }
+
+    // the value of --name as a number, or defaultValue when the option is not given
+    private static int intOption(String name, int defaultValue) {
+        return hasOption(name) ? intArgument(getOption(name, null), "--" + name) : defaultValue;
+    }
+
+    // parse a comma separated list of exactly n numbers
+    private static int[] intList(String text, int n, String option) {
+        String[] parts = text.split(",");
+        if (parts.length != n) {
+            fail(option + " needs " + n + " comma separated values, got " + text);
+        }
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = intArgument(parts[i], option);
+        }
+        return values;
+    }
+
+    // victim cache hits and the 3C breakdown, for whichever of the two is on
+    private static void printMissSummary(cache c) {
+        long misses = c.loadMisses + c.storeMisses;
+        victimCache v = c.victims;
+        if (v != null) {
+            out.write(String.format("victim cache (%d blocks): %d hits of %d misses (%.4f), %d blocks pushed out (%d dirty)",
+                v.capacity, v.hits, misses, misses == 0 ? 0 : (double) v.hits / misses, v.spills, v.dirtySpills));
+            out.newline();
+        }
+        missClassifier m = c.classifier;
+        if (m != null) {
+            out.write(String.format("misses: %d compulsory (%.4f), %d capacity (%.4f), %d conflict (%.4f)",
+                m.compulsory, misses == 0 ? 0 : (double) m.compulsory / misses,
+                m.capacity, misses == 0 ? 0 : (double) m.capacity / misses,
+                m.conflict, misses == 0 ? 0 : (double) m.conflict / misses));
+            out.newline();
+            if (v != null) {
+                out.write(String.format("served by the victim cache: %d capacity, %d conflict", m.capacityFromVictims, m.conflictFromVictims));
+                out.newline();
+            }
+        }
+    }
+
+    // memory traffic under the cache's write policy, and what the write buffer did
+    private static void printWriteSummary(cache c) {
+        long written = c.memoryWriteBytes;
+        if (c.buffer != null) {
+            c.buffer.flushAll(); // whatever is still waiting reaches memory at the end
+            written += c.buffer.bytesDrained;
+        }
+        out.write(String.format("write policy: %s, %s; memory traffic: %d bytes read, %d bytes written",
+            c.writeThrough ? "write-through" : "write-back", c.writeAllocate ? "write-allocate" : "no-write-allocate",
+            c.memoryReads * c.blockSize, written));
+        out.newline();
+        writeBuffer b = c.buffer;
+        if (b != null) {
+            out.write(String.format("write buffer (%d entries): %d writes, %d coalesced (rate %.4f), occupancy %.2f average / %d max, %d drains (%d forced by reads)",
+                b.capacity, b.writes, b.coalesced, b.writes == 0 ? 0 : (double) b.coalesced / b.writes,
+                b.writes == 0 ? 0 : (double) b.occupancySum / b.writes, b.maxOccupancy, b.drains, b.readDrains));
+            out.newline();
+        }
     }
 
     /**
-     * Opens a trace file, given its name. Must be called before `traceNextAccess`,
-     * which will begin reading from this file.
-     * @param filename: the name of the trace file to open
+     * Stack-distance mode: one pass over the trace gives the LRU miss ratio of every
+     * associativity for a fixed number of sets and block size.
+     * @param positional: the trace file, the number of sets and the block size
      */
-    public static void traceInit(String filename) {
-        try {
-            traceFileScanner = new Scanner(new File(filename));
-        } catch (FileNotFoundException e) {
-            System.err.println("Failed to open trace file: " + e.getMessage());
-            System.exit(1);
+    static void stackDistanceReport(List<String> positional) {
+        if (positional.size() != 3) {
+            fail(USAGE);
+        }
+        int numSets = Integer.parseInt(positional.get(1));
+        int blockSize = Integer.parseInt(positional.get(2));
+        int maxWays = intOption("max-ways", 64);
+        if (Integer.bitCount(numSets) != 1 || Integer.bitCount(blockSize) != 1) {
+            fail("The number of sets and the block size must be powers of two");
+        }
+
+        stackDistance analysis = new stackDistance(numSets, blockSize);
+        traceBlockSize = blockSize;
+        traceInit(positional.get(0), hasOption("mmap"), hasOption("decode-thread"));
+        accessBatch batch = new accessBatch();
+        while (traceNextBatch(batch) > 0) {
+            for (int i = 0; i < batch.count; i++) {
+                analysis.access(batch.address[i]);
+            }
+        }
+
+        out.write(String.format("LRU stack distance: %d sets, %d-byte blocks, %d accesses, %d cold misses",
+            numSets, blockSize, analysis.accesses, analysis.coldMisses));
+        out.newline();
+        out.write(String.format("%-6s %12s %10s %10s", "ways", "size-bytes", "misses", "miss-rate"));
+        out.newline();
+        // beyond the largest distance seen only cold misses are left, so the curve is flat from there
+        int lastWays = Integer.min(maxWays, analysis.maxDistance() + 1);
+        for (int ways = 1; ways <= Integer.max(lastWays, 1); ways++) {
+            long misses = analysis.missesForWays(ways);
+            double missRate = analysis.accesses == 0 ? 0 : (double) misses / analysis.accesses;
+            out.write(String.format("%-6d %12d %10d %10.4f", ways, (long) numSets * ways * blockSize, misses, missRate));
+            out.newline();
         }
     }
 
     /**
-     * Checks if we've already read all accesses from the trace file.
-     * @return true if the trace file is complete, false if there's more to read.
+     * Runs the open trace through a cache, printing every access the usual way.
+     * @param myCache: the cache to simulate
+     * @param log: where the per-access lines go
      */
-    public static boolean traceFinished() {
-        return !traceFileScanner.hasNextLine();
+    static void runTrace(cache myCache, outputWriter log) {
+        runTrace(myCache, log, 0, null);
     }
 
     /**
-     * Read the next access in the trace. Errors if `traceFinished() == true`.
-     * @return The access as a `cacheAccess` struct.
+     * Runs the open trace through a cache, printing every access to log.
+     * @param log: null (--stats-only) to skip the per-access lines
+     * @param skip: accesses to drop first, when a restore could not seek the trace
+     * @param saver: a checkpoint to rewrite every so often between batches, or null
      */
-    public static CacheAccess traceNextAccess() {
-        String[] parts = traceFileScanner.nextLine().strip().split("\\s+");
-        CacheAccess result = new CacheAccess();
-
-        // Parse address and access size
-        result.address = Integer.parseInt(parts[1].substring(2), 16);
-        result.accessSize = Integer.parseInt(parts[2]);
-
-        // Check access type
-        if (parts[0].equals("store")) {
-            result.isStore = true;
-
-            // Read data
-            result.data = new byte[result.accessSize];
-            for (int i = 0; i < result.accessSize; i++) {
-                result.data[i] = (byte) Integer.parseInt(
-                    parts[3].substring(i * 2, 2 + i * 2),
-                    16
-                );
-            }
-        } else if (parts[0].equals("load")) {
-            result.isStore = false;
-        } else {
-            System.err.println("Invalid trace file access type" + parts[0]);
-            System.exit(1);
+    static void runTrace(cache myCache, outputWriter log, long skip, checkpoint saver) {
+        // decode, simulate and print a batch at a time, reusing the same batches throughout
+        accessBatch batch = new accessBatch();
+        accessBatch rest = new accessBatch();
+        resultBatch results = new resultBatch();
+        while (traceNextBatch(batch) > 0) {
+            accessBatch run = batch;
+            if (skip >= batch.count) {
+                skip -= batch.count;
+                continue;
+            } else if (skip > 0) {
+                rest.clear();
+                rest.copyFrom(batch, (int) skip, batch.count - (int) skip);
+                run = rest;
+                skip = 0;
+            }
+            myCache.process(run, results);
+            if (log != null) {
+                logResults(run, results, log);
+            }
+            if (saver != null) {
+                saver.advance(myCache, run.count);
+            }
         }
-        return result;
     }
-    
+
+    /**
+     * Handles --restore and --checkpoint for the single-cache mode. A restore loads the saved
+     * state into the cache and, unless --fork starts the trace over, moves the trace to where
+     * the checkpoint left it: by seeking when the trace is plain text read without a decode
+     * thread, else the caller skips the accesses already simulated.
+     * @param c: the cache from the command line, which must match the checkpoint's
+     * @param traceFile: the trace, already opened
+     * @param statsOnly: whether the run tracks block data
+     * @return where to save, with file null when not checkpointing; accesses is the trace
+     * position to continue from and offset is -1 unless the trace was moved there by seeking
+     */
+    private static checkpoint checkpoints(cache c, String traceFile, boolean statsOnly) {
+        checkpoint saver = new checkpoint();
+        saver.sizeKB = c.cacheSize / 1024;
+        saver.ways = c.numOfBlockPerSet;
+        saver.blockSize = c.blockSize;
+        saver.policy = getOption("policy", "fifo");
+        saver.trackData = !statsOnly;
+        saver.writeThrough = c.writeThrough;
+        saver.writeAllocate = c.writeAllocate;
+        saver.traceLength = new File(traceFile).length();
+        saver.offset = -1;
+        if (!hasOption("checkpoint") && !hasOption("restore")) {
+            return saver;
+        }
+        if (hasOption("levels") || hasOption("victim-cache") || hasOption("prefetch") || hasOption("timing") || hasOption("dram")
+            || hasOption("classify-misses") || hasOption("write-buffer") || hasOption("metrics")) {
+            fail("Checkpoints hold a single cache; --levels, --victim-cache, --prefetch, --timing, --dram, --classify-misses, --write-buffer and --metrics keep state they do not save");
+        }
+
+        if (hasOption("restore")) {
+            checkpoint cp = null;
+            try {
+                cp = checkpoint.open(getOption("restore", null));
+            } catch (IOException e) {
+                fail("Failed to read checkpoint: " + e.getMessage());
+            }
+            if (cp.sizeKB != saver.sizeKB || cp.ways != saver.ways || cp.blockSize != saver.blockSize
+                || !cp.policy.equals(saver.policy) || cp.trackData != saver.trackData
+                || cp.writeThrough != saver.writeThrough || cp.writeAllocate != saver.writeAllocate) {
+                fail(String.format("Checkpoint holds a %d kB, %d-way, %d-byte block %s %s, %s cache%s; restore it with the same arguments",
+                    cp.sizeKB, cp.ways, cp.blockSize, cp.policy, cp.writeThrough ? "write-through" : "write-back",
+                    cp.writeAllocate ? "write-allocate" : "no-write-allocate", cp.trackData ? "" : " with --stats-only"));
+            }
+            cp.restore(c);
+            if (!hasOption("fork")) {
+                if (cp.traceLength != saver.traceLength) {
+                    fail("Checkpoint was taken on a different trace; use --fork to run this one from the start");
+                }
+                saver.accesses = cp.accesses;
+                if (cp.offset >= 0 && traceFileReader instanceof traceReader) {
+                    try {
+                        ((traceReader) traceFileReader).seek(cp.offset, cp.lineNumber);
+                        saver.offset = cp.offset;
+                    } catch (IOException e) {
+                        fail("Failed to seek the trace: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        if (hasOption("checkpoint")) {
+            saver.file = getOption("checkpoint", null);
+            saver.interval = longArgument(getOption("checkpoint-every", "0"), "--checkpoint-every");
+            saver.nextSave = saver.accesses + saver.interval;
+        }
+        return saver;
+    }
+
+    // --stats-only: the totals that replace the per-access lines
+    private static void printTotals(cache c) {
+        printTotals(totals(c));
+    }
+
+    // load hits, load misses, store hits, store misses, dirty evictions, clean evictions
+    static long[] totals(cache c) {
+        return new long[] {c.loadHits, c.loadMisses, c.storeHits, c.storeMisses, c.dirtyEvictions, c.cleanEvictions};
+    }
+
+    private static void printTotals(long[] t) {
+        long loads = t[0] + t[1];
+        long stores = t[2] + t[3];
+        long misses = t[1] + t[3];
+        long accesses = loads + stores;
+        out.write(String.format("accesses: %d (%d loads, %d stores), %d hits, %d misses, miss rate %.4f",
+            accesses, loads, stores, accesses - misses, misses, accesses == 0 ? 0 : (double) misses / accesses));
+        out.newline();
+        out.write(String.format("loads: %d hits, %d misses; stores: %d hits, %d misses; evictions: %d dirty, %d clean",
+            t[0], t[1], t[2], t[3], t[4], t[5]));
+        out.newline();
+    }
+
     public static void main(String[] args) {
-        if (args.length != 4) {
-            System.err.println("Usage: java CacheSim <tracefile> <cache-size-kB> <num-of-blocks-per-set> <block-size>");
+        List<String> positional = parseArgs(args);
+        if (!positional.isEmpty() && positional.get(0).equals("convert")) {
+            convert(positional.subList(1, positional.size()));
+            System.exit(0);
+        }
+        if (!positional.isEmpty() && positional.get(0).equals("stackdist")) {
+            stackDistanceReport(positional.subList(1, positional.size()));
+            out.flush();
+            System.exit(0);
+        }
+        if (!positional.isEmpty() && positional.get(0).equals("coherence")) {
+            coherence(positional.subList(1, positional.size()));
+            out.flush();
+            System.exit(0);
+        }
+        if (!positional.isEmpty() && positional.get(0).equals("sweep")) {
+            sweep(positional.subList(1, positional.size()));
+            out.flush();
+            System.exit(0);
+        }
+        if (!positional.isEmpty() && positional.get(0).equals("server")) {
+            server(positional.subList(1, positional.size()));
+        }
+        if (!positional.isEmpty() && positional.get(0).equals("client")) {
+            client(positional.subList(1, positional.size()));
+            out.flush();
+            System.exit(0);
+        }
+        if (positional.size() != 4) {
+            System.err.println(USAGE);
             System.exit(1);
         }
 
-        String traceFile = args[0];
-        int cacheSizeKB = Integer.parseInt(args[1]);
-        int numOfBlockPerSet = Integer.parseInt(args[2]); 
-        int blockSize = Integer.parseInt(args[3]);
+        String traceFile = positional.get(0);
+        int cacheSizeKB = Integer.parseInt(positional.get(1));
+        int numOfBlockPerSet = Integer.parseInt(positional.get(2));
+        int blockSize = Integer.parseInt(positional.get(3));
 
-        traceInit(traceFile); // open the trace file and prepare it for reading
+        traceBlockSize = blockSize;
+        traceInit(traceFile, hasOption("mmap"), hasOption("decode-thread")); // open the trace file and prepare it for reading
         
-        cache myCache = new cache(cacheSizeKB, numOfBlockPerSet, blockSize);
-       
-        while (!traceFinished()) {
-            CacheAccess access = traceNextAccess();
-            
-            if (access.isStore) {
-                // process store operation
-                String result = myCache.store(access.address, access.accessSize, access.data);
-                System.out.println("store 0x" + Integer.toHexString(access.address) + " " + result);
-            } else {
-                // process load operation
-                String result = myCache.load(access.address, access.accessSize);
-                
-                // print load address and result
-                System.out.print("load 0x" + Integer.toHexString(access.address) + " " + result);
-                
-                // print loaded data if needed
-                byte[] data = myCache.getLoadedData();
-                if (data != null) {
-                    StringBuilder dataHex = new StringBuilder();
-                    for (int i = 0; i < data.length; i++) {
-                        dataHex.append(String.format("%02x", data[i] & 0xFF));
-                    }
-                    System.out.print(" " + dataHex.toString());
-                }
-                System.out.println();
+        boolean statsOnly = statsOnly();
+        if (statsOnly && (hasOption("levels") || hasOption("victim-cache") || hasOption("write-buffer"))) {
+            fail("--stats-only and sampling keep no block data, so they cannot be combined with --levels, --victim-cache or --write-buffer");
+        }
+        if (hasOption("sample-sets") && (hasOption("smarts") || hasOption("timing") || hasOption("dram") || hasOption("classify-misses"))) {
+            fail("--sample-sets only estimates miss ratios; it cannot be combined with --smarts, --timing, --dram or --classify-misses");
+        }
+        if (hasOption("smarts") && !hasOption("timing") && !hasOption("dram")) {
+            fail("--smarts samples the timing model, add --timing or --dram");
+        }
+        if ((hasOption("sample-sets") || hasOption("smarts")) && (hasOption("checkpoint") || hasOption("restore"))) {
+            fail("Sampled runs cannot be checkpointed or restored");
+        }
+        cache myCache = new cache(cacheSizeKB, numOfBlockPerSet, blockSize, getOption("policy", "fifo"), null, !statsOnly);
+        boolean writeOptions = hasOption("write-through") || hasOption("no-write-allocate") || hasOption("write-buffer");
+        if (writeOptions) {
+            if (hasOption("levels")) {
+                fail("Write policies are only modelled for a single cache in front of memory, not with --levels");
+            }
+            myCache.setWritePolicy(hasOption("write-through"), !hasOption("no-write-allocate"),
+                intOption("write-buffer", 0));
+        }
+        if (hasOption("victim-cache")) {
+            myCache.victims = new victimCache(intOption("victim-cache", 0), myCache);
+        }
+        if (hasOption("classify-misses")) {
+            myCache.classifier = new missClassifier(myCache.numSets * myCache.numOfBlockPerSet);
+        }
+        if (hasOption("timing") || hasOption("dram")) {
+            if (hasOption("levels") || writeOptions) {
+                fail("The timing model covers a single write-back cache in front of memory, not --levels or write policies");
+            }
+            int[] t = intList(getOption("timing", "true").equals("true") ? "4,100,20,8" : getOption("timing", null), 4, "--timing");
+            dramModel dram = null;
+            if (hasOption("dram")) {
+                int[] d = intList(getOption("dram", "true").equals("true") ? "8,2048,14,14,14,8" : getOption("dram", null), 6, "--dram");
+                dram = new dramModel(d[0], d[1], d[2], d[3], d[4], d[5], blockSize);
+            }
+            myCache.timing = new timingModel(myCache, t[0], t[1], t[2], t[3], dram);
+        }
+        if (hasOption("prefetch")) {
+            myCache.prefetch = new prefetchUnit(getOption("prefetch", null), myCache);
+        }
+        if (hasOption("metrics")) {
+            if (getOption("metrics", null).equals("true")) {
+                fail("--metrics needs a file name, e.g. --metrics=run.json");
+            }
+            myCache.metrics = new cacheMetrics(myCache, intOption("metrics-jfr", 0));
+        }
+        hierarchy levels = null;
+        if (hasOption("levels")) {
+            levels = hierarchy.build(myCache, getOption("levels", null), getOption("inclusion", "nine"), getOption("latency", null));
+        }
+
+        if (hasOption("sample-sets")) {
+            String[] spec = getOption("sample-sets", null).split(":");
+            setSampler sampler = new setSampler(myCache, intArgument(spec[0], "--sample-sets"),
+                spec.length > 1 ? longArgument(spec[1], "--sample-sets") : 1);
+            sampler.run();
+            sampler.printSummary();
+        } else if (hasOption("smarts")) {
+            int[] u = intList(getOption("smarts", null), 3, "--smarts");
+            smartsSampler sampler = new smartsSampler(myCache, u[0], u[1], u[2]);
+            sampler.run();
+            printTotals(myCache); // the cache saw every access, so these are exact
+            sampler.printSummary();
+        } else {
+            checkpoint saver = checkpoints(myCache, traceFile, statsOnly);
+            // a resumed trace that could not be seeked replays from the start, dropping what ran
+            long skip = hasOption("restore") && !hasOption("fork") && saver.offset < 0 ? saver.accesses : 0;
+            runTrace(myCache, statsOnly ? null : out, skip, saver.file != null ? saver : null);
+            if (saver.file != null) {
+                saver.save(myCache);
+            }
+            if (statsOnly) {
+                printTotals(myCache);
+            }
+        }
+        if (myCache.prefetch != null) {
+            myCache.prefetch.printSummary(myCache);
+        }
+        if (writeOptions) {
+            printWriteSummary(myCache);
+        }
+        printMissSummary(myCache);
+        if (myCache.timing != null && !hasOption("smarts")) {
+            myCache.timing.printSummary();
+        }
+        if (levels != null) {
+            levels.printSummary();
+        }
+        if (myCache.metrics != null) {
+            try {
+                myCache.metrics.write(getOption("metrics", null));
+            } catch (IOException e) {
+                fail("Failed to write metrics: " + e.getMessage());
             }
         }
 
+        out.flush();
         System.exit(0);
     }
 }
@@ -0,0 +1,60 @@
+import java.util.*;
+
+public class sparseMemory {
+    private static final int PAGE_BITS = 12; // blocks per directory page (log2)
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+    private int blockSize;
+    private MemoryBlock[][] pages = new MemoryBlock[0][];
+
+    public sparseMemory(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    // Copy a whole block into dst; a block that was never written reads as zeros
+    public void readBlock(long blockIndex, byte[] dst, int dstOffset) {
+        MemoryBlock block = getBlock(blockIndex);
+        if (block != null) {
+            System.arraycopy(block.data, 0, dst, dstOffset, blockSize);
+        } else {
+            Arrays.fill(dst, dstOffset, dstOffset + blockSize, (byte) 0);
+        }
+    }
+
+    // Copy a whole block from src into memory, allocating it on first write
+    public void writeBlock(long blockIndex, byte[] src, int srcOffset) {
+        int pageIndex = (int) (blockIndex >>> PAGE_BITS);
+        if (pageIndex >= pages.length) {
+            // Grow the directory geometrically so a walk upwards stays cheap
+            int newLength = pages.length == 0 ? 16 : pages.length;
+            while (newLength <= pageIndex) {
+                newLength *= 2;
+            }
+            pages = Arrays.copyOf(pages, newLength);
+        }
+        MemoryBlock[] page = pages[pageIndex];
+        if (page == null) {
+            page = new MemoryBlock[1 << PAGE_BITS];
+            pages[pageIndex] = page;
+        }
+        int slot = (int) (blockIndex & PAGE_MASK);
+        MemoryBlock block = page[slot];
+        if (block == null) {
+            block = new MemoryBlock(blockSize);
+            page[slot] = block;
+        }
+        System.arraycopy(src, srcOffset, block.data, 0, blockSize);
+    }
+
+    private MemoryBlock getBlock(long blockIndex) {
+        long pageIndex = blockIndex >>> PAGE_BITS;
+        if (pageIndex >= pages.length) {
+            return null;
+        }
+        MemoryBlock[] page = pages[(int) pageIndex];
+        if (page == null) {
+            return null;
+        }
+        return page[(int) (blockIndex & PAGE_MASK)];
+    }
+}